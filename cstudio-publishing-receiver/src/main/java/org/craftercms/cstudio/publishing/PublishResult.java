@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/**
+ * Outcome of a publish, stage by stage: how long it waited to be admitted by its target, the status, size and write
+ * time of each of its files, how long it waited for post processing and the time and outcome of each post processor.
+ * The result is returned in the response of the publish and, once the publish has an id, by the publish status
+ * servlet. Only the first {@link #MAX_FILES} files are listed, the file counts include all of them.
+ */
+public class PublishResult {
+
+    public static final int MAX_FILES = 1000;
+
+    public enum Status {
+        WRITING, WRITTEN, QUEUED, PROCESSING, COMPLETED, FAILED
+    }
+
+    public enum FileStatus {
+        CREATED, UPDATED, UNCHANGED, DELETED, REJECTED, FAILED
+    }
+
+    private final String targetName;
+    private String publishId;
+    private Status status = Status.WRITING;
+    private long admissionWait;
+    private long writeStarted;
+    private long writeTime;
+    private long bytes;
+    private final List<FileResult> files = new ArrayList<FileResult>();
+    private final Map<FileStatus, Integer> fileCounts = new EnumMap<FileStatus, Integer>(FileStatus.class);
+    private long postProcessingWait;
+    private long postProcessingTime;
+    private final List<ProcessorResult> processors = new ArrayList<ProcessorResult>();
+    private String error;
+
+    public PublishResult(String targetName) {
+        this.targetName = targetName;
+        this.writeStarted = System.currentTimeMillis();
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public synchronized String getPublishId() {
+        return publishId;
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    public synchronized String getError() {
+        return error;
+    }
+
+    /**
+     * the target admitted the publish, which starts writing its files
+     *
+     * @param wait
+     *          milliseconds waited for the target's turn to write
+     */
+    public synchronized void admitted(long wait) {
+        admissionWait = wait;
+        writeStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * @param location
+     * @param metadata
+     *          if the file is the metadata of the location
+     * @param status
+     * @param bytes
+     *          bytes written
+     * @param time
+     *          milliseconds taken to write the file
+     * @param error
+     *          why the file was rejected or failed, null otherwise
+     */
+    public synchronized void fileWritten(String location, boolean metadata, FileStatus status, long bytes, long time,
+                                         String error) {
+        this.bytes += bytes;
+        addFile(new FileResult(location, metadata, status, bytes, time, error));
+    }
+
+    public synchronized void fileDeleted(String location) {
+        addFile(new FileResult(location, false, FileStatus.DELETED, 0, 0, null));
+    }
+
+    /**
+     * all the files of the publish have been written and committed
+     */
+    public synchronized void written() {
+        writeTime = System.currentTimeMillis() - writeStarted;
+        status = Status.WRITTEN;
+    }
+
+    /**
+     * the publish was recorded for post processing under the given id
+     *
+     * @param publishId
+     */
+    public synchronized void queued(String publishId) {
+        this.publishId = publishId;
+        status = Status.QUEUED;
+    }
+
+    /**
+     * @param wait
+     *          milliseconds the publish waited for post processing
+     */
+    public synchronized void processingStarted(long wait) {
+        postProcessingWait = wait;
+        status = Status.PROCESSING;
+    }
+
+    /**
+     * @param processor
+     *          key of the post processor
+     * @param time
+     *          milliseconds the post processor took
+     * @param error
+     *          the error of the post processor, null if it succeeded
+     */
+    public synchronized void processorFinished(String processor, long time, Throwable error) {
+        processors.add(new ProcessorResult(processor, time, error != null ? getMessage(error) : null));
+    }
+
+    /**
+     * @param time
+     *          milliseconds post processing took
+     * @param error
+     *          why post processing failed, null if it succeeded
+     */
+    public synchronized void processingFinished(long time, String error) {
+        postProcessingTime = time;
+        this.error = error;
+        status = error == null ? Status.COMPLETED : Status.FAILED;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{ ");
+        if (publishId != null) {
+            json.append("\"publishId\": \"").append(publishId).append("\", ");
+        }
+        json.append("\"target\": \"").append(StringEscapeUtils.escapeJson(targetName)).append("\", ");
+        json.append("\"status\": \"").append(status).append("\", ");
+        if (error != null) {
+            json.append("\"error\": \"").append(StringEscapeUtils.escapeJson(error)).append("\", ");
+        }
+        json.append("\"admissionWait\": ").append(admissionWait).append(", ");
+        json.append("\"writeTime\": ").append(writeTime).append(", ");
+        json.append("\"bytes\": ").append(bytes).append(", ");
+        json.append("\"fileCounts\": { ");
+        String separator = "";
+        for (Map.Entry<FileStatus, Integer> count : fileCounts.entrySet()) {
+            json.append(separator).append('"').append(count.getKey()).append("\": ").append(count.getValue());
+            separator = ", ";
+        }
+        json.append(" }, ");
+        json.append("\"files\": [");
+        separator = " ";
+        for (FileResult file : files) {
+            json.append(separator);
+            file.appendJson(json);
+            separator = ", ";
+        }
+        json.append(" ], ");
+        json.append("\"postProcessingWait\": ").append(postProcessingWait).append(", ");
+        json.append("\"postProcessingTime\": ").append(postProcessingTime).append(", ");
+        json.append("\"processors\": [");
+        separator = " ";
+        for (ProcessorResult processor : processors) {
+            json.append(separator);
+            processor.appendJson(json);
+            separator = ", ";
+        }
+        json.append(" ] }");
+        return json.toString();
+    }
+
+    private void addFile(FileResult file) {
+        Integer count = fileCounts.get(file.status);
+        fileCounts.put(file.status, count != null ? count + 1 : 1);
+        if (files.size() < MAX_FILES) {
+            files.add(file);
+        }
+    }
+
+    private static String getMessage(Throwable error) {
+        // post processor errors are usually wrapped, the cause says what actually failed
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+    }
+
+    private static class FileResult {
+
+        final String location;
+        final boolean metadata;
+        final FileStatus status;
+        final long bytes;
+        final long time;
+        final String error;
+
+        FileResult(String location, boolean metadata, FileStatus status, long bytes, long time, String error) {
+            this.location = location;
+            this.metadata = metadata;
+            this.status = status;
+            this.bytes = bytes;
+            this.time = time;
+            this.error = error;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{ \"location\": \"").append(StringEscapeUtils.escapeJson(location)).append("\", ");
+            if (metadata) {
+                json.append("\"metadata\": true, ");
+            }
+            json.append("\"status\": \"").append(status).append("\", ");
+            json.append("\"bytes\": ").append(bytes).append(", ");
+            json.append("\"time\": ").append(time);
+            if (error != null) {
+                json.append(", \"error\": \"").append(StringEscapeUtils.escapeJson(error)).append("\"");
+            }
+            json.append(" }");
+        }
+
+    }
+
+    private static class ProcessorResult {
+
+        final String processor;
+        final long time;
+        final String error;
+
+        ProcessorResult(String processor, long time, String error) {
+            this.processor = processor;
+            this.time = time;
+            this.error = error;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{ \"processor\": \"").append(StringEscapeUtils.escapeJson(processor)).append("\", ");
+            json.append("\"status\": \"").append(error == null ? Status.COMPLETED : Status.FAILED).append("\", ");
+            json.append("\"time\": ").append(time);
+            if (error != null) {
+                json.append(", \"error\": \"").append(StringEscapeUtils.escapeJson(error)).append("\"");
+            }
+            json.append(" }");
+        }
+
+    }
+
+}
@@ -16,7 +16,10 @@
  */
 package org.craftercms.cstudio.publishing;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * published change set
@@ -93,6 +96,70 @@ public class PublishedChangeSet {
 		this.deletedFiles = deletedFiles;
 	}
 
+	/**
+	 * merge change sets published one after the other into one with the same net effect on the target. A file
+	 * created and then deleted is dropped, a file created and then updated stays created, a delete wins over previous
+	 * updates and a file deleted and then created again is updated.
+	 *
+	 * @param changeSets
+	 * 			change sets in the order they were published
+	 * @return
+	 */
+	public static PublishedChangeSet merge(List<PublishedChangeSet> changeSets) {
+		Map<String, ChangeType> changes = new LinkedHashMap<String, ChangeType>();
+		for (PublishedChangeSet changeSet : changeSets) {
+			// within a publish files are written before deletes are applied
+			mergeChanges(changes, changeSet.getCreatedFiles(), ChangeType.CREATED);
+			mergeChanges(changes, changeSet.getUpdatedFiles(), ChangeType.UPDATED);
+			mergeChanges(changes, changeSet.getDeletedFiles(), ChangeType.DELETED);
+		}
+		PublishedChangeSet merged = new PublishedChangeSet(new ArrayList<String>(), new ArrayList<String>(),
+				new ArrayList<String>());
+		for (Map.Entry<String, ChangeType> change : changes.entrySet()) {
+			switch (change.getValue()) {
+				case CREATED:
+					merged.getCreatedFiles().add(change.getKey());
+					break;
+				case UPDATED:
+					merged.getUpdatedFiles().add(change.getKey());
+					break;
+				case DELETED:
+					merged.getDeletedFiles().add(change.getKey());
+					break;
+				default:
+					break;
+			}
+		}
+		return merged;
+	}
+
+	private static void mergeChanges(Map<String, ChangeType> changes, List<String> files, ChangeType type) {
+		if (files == null) {
+			return;
+		}
+		for (String file : files) {
+			ChangeType previous = changes.get(file);
+			if (previous == null) {
+				changes.put(file, type);
+			} else if (previous == ChangeType.CREATED) {
+				if (type == ChangeType.DELETED) {
+					// never existed as far as the post processors know
+					changes.remove(file);
+				}
+			} else if (previous == ChangeType.DELETED) {
+				if (type != ChangeType.DELETED) {
+					changes.put(file, ChangeType.UPDATED);
+				}
+			} else {
+				changes.put(file, type == ChangeType.DELETED ? ChangeType.DELETED : ChangeType.UPDATED);
+			}
+		}
+	}
+
+	private enum ChangeType {
+		CREATED, UPDATED, DELETED
+	}
+
 	@Override
 	public String toString() {
 		return "PublishedChangeSet{" +
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.archive;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+
+/**
+ * Reads the files of a tar or zip archive sequentially from a stream, without buffering the archive. The archive is
+ * parsed by Commons Compress, which handles the GNU and pax extensions of tar. Directories, links and other special
+ * entries are skipped, and entries whose data can't be read, like sparse files, are rejected.
+ *
+ * <pre>
+ * ArchiveReader reader = ArchiveReader.open(ArchiveReader.FORMAT_TGZ, in);
+ * for (String name = reader.nextEntry(); name != null; name = reader.nextEntry()) {
+ *     copy(reader.getEntryStream(), ...);
+ * }
+ * </pre>
+ */
+public class ArchiveReader implements Closeable {
+
+    public static final String FORMAT_TAR = "tar";
+    public static final String FORMAT_TGZ = "tgz";
+    public static final String FORMAT_ZIP = "zip";
+
+    private final ArchiveInputStream archive;
+    private final InputStream entryStream;
+
+    protected ArchiveReader(ArchiveInputStream archive) {
+        this.archive = archive;
+        this.entryStream = new EntryInputStream(archive);
+    }
+
+    /**
+     * create a reader for the given format
+     *
+     * @param format
+     *          tar, tgz (or tar.gz) or zip
+     * @param in
+     * @return the reader
+     * @throws IOException
+     *          if the format isn't supported
+     */
+    public static ArchiveReader open(String format, InputStream in) throws IOException {
+        if (FORMAT_TAR.equalsIgnoreCase(format)) {
+            return new ArchiveReader(new TarArchiveInputStream(in, "UTF-8"));
+        } else if (FORMAT_TGZ.equalsIgnoreCase(format) || "tar.gz".equalsIgnoreCase(format)) {
+            return new ArchiveReader(new TarArchiveInputStream(new GZIPInputStream(in, 64 * 1024), "UTF-8"));
+        } else if (FORMAT_ZIP.equalsIgnoreCase(format)) {
+            return new ArchiveReader(new ZipArchiveInputStream(in, "UTF-8"));
+        } else {
+            throw new IOException("Unsupported archive format " + format);
+        }
+    }
+
+    /**
+     * move to the next file in the archive, skipping what's left of the current one
+     *
+     * @return the path of the file within the archive, or null at the end of the archive
+     * @throws IOException
+     *          if the archive is invalid
+     * @throws ContentRejectedException
+     *          if the file is stored in a way that can't be read
+     */
+    public String nextEntry() throws IOException {
+        for (ArchiveEntry entry = archive.getNextEntry(); entry != null; entry = archive.getNextEntry()) {
+            if (entry.isDirectory() || (entry instanceof TarArchiveEntry && !isRegularFile((TarArchiveEntry) entry))) {
+                // links and other special entries
+                continue;
+            }
+            if (!archive.canReadEntryData(entry)) {
+                throw new ContentRejectedException("Unsupported archive entry " + entry.getName());
+            }
+            return entry.getName();
+        }
+        return null;
+    }
+
+    private static boolean isRegularFile(TarArchiveEntry entry) throws IOException {
+        if (entry.isGNUSparse()) {
+            throw new ContentRejectedException("Unsupported sparse archive entry " + entry.getName());
+        }
+        byte type = entry.getLinkFlag();
+        return type == TarConstants.LF_NORMAL || type == TarConstants.LF_OLDNORM || type == TarConstants.LF_CONTIG;
+    }
+
+    /**
+     * @return the contents of the current file. Closing it leaves the archive open.
+     */
+    public InputStream getEntryStream() {
+        return entryStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+
+    /**
+     * stream that doesn't close the archive it reads from
+     */
+    private static class EntryInputStream extends FilterInputStream {
+
+        EntryInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // the archive is closed by the reader
+        }
+
+    }
+
+}
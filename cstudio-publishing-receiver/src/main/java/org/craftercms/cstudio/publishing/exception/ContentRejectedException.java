@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.exception;
+
+import java.io.IOException;
+
+/**
+ * thrown by a pre-processor to veto a published file. Extends {@link IOException} so it can also be thrown while the
+ * file is being read and written.
+ */
+public class ContentRejectedException extends IOException {
+
+	private static final long serialVersionUID = 4393520843870536184L;
+
+	public ContentRejectedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.exception;
+
+import java.io.IOException;
+
+/**
+ * thrown when a target is too busy to accept a publish, which can be retried later
+ */
+public class PublishRejectedException extends IOException {
+
+	private static final long serialVersionUID = -6190416356853196284L;
+
+	private final int retryAfter;
+
+	/**
+	 * @param message
+	 * @param retryAfter
+	 * 			seconds after which the publish can be retried
+	 */
+	public PublishRejectedException(String message, int retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package org.craftercms.cstudio.publishing.processor;
 
+import java.util.List;
+
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.BeanNameAware;
 
@@ -28,6 +30,7 @@ public abstract class AbstractPublishingProcessor implements PublishingProcessor
 
     protected String name;
     protected int order;
+    protected List<String> dependsOn;
 
     public AbstractPublishingProcessor() {
         order = Integer.MAX_VALUE;
@@ -52,4 +55,13 @@ public abstract class AbstractPublishingProcessor implements PublishingProcessor
         this.order = order;
     }
 
+    @Override
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
 }
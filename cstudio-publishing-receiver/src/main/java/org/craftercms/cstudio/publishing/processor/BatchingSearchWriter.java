@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.search.service.SearchService;
+
+/**
+ * Collects the search index updates and deletes of a change set and sends them in batches, committing the index once
+ * when the change set is done instead of once per file. Updates and deletes of the same document in a change set
+ * collapse to the last one. The writer is not thread safe, each change set uses its own.
+ *
+ * <p>With a {@link CommitWindow} the commit is not done right away, it's done once for all the change sets that
+ * finish within the window, which helps when many small publishes arrive close together. The writer still waits for
+ * the deferred commit, so a change set is only done, or fails, with the commit of its operations.</p>
+ */
+public class BatchingSearchWriter {
+
+    private static final Log logger = LogFactory.getLog(BatchingSearchWriter.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final SearchService searchService;
+    private final int batchSize;
+    private final CommitWindow commitWindow;
+    private final Map<String, Operation> pending = new LinkedHashMap<String, Operation>();
+    private int sent;
+    private int batches;
+
+    /**
+     * @param searchService
+     * @param batchSize
+     *          number of operations collected before they're sent
+     * @param commitWindow
+     *          window the commit is deferred to, null to commit right away
+     */
+    public BatchingSearchWriter(SearchService searchService, int batchSize, CommitWindow commitWindow) {
+        this.searchService = searchService;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.commitWindow = commitWindow;
+    }
+
+    public void update(String site, String id, String xml, boolean ignoreRootInFieldNames) {
+        add(new Operation(site, id, xml, ignoreRootInFieldNames, null, null));
+    }
+
+    public void updateDocument(String site, String id, File file, Map<String, String> additionalFields) {
+        add(new Operation(site, id, null, false, file, additionalFields));
+    }
+
+    public void delete(String site, String id) {
+        add(new Operation(site, id, null, false, null, null));
+    }
+
+    /**
+     * send the operations collected so far
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Operation> batch = new ArrayList<Operation>(pending.values());
+        pending.clear();
+        long start = System.currentTimeMillis();
+        // the search client has no bulk request, the batch is sent back to back without committing in between
+        for (Operation operation : batch) {
+            operation.send(searchService);
+        }
+        sent += batch.size();
+        batches++;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sent batch of " + batch.size() + " search operations in " +
+                         (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * send the remaining operations and commit the index, if anything was sent, waiting for the commit window if
+     * there's one
+     */
+    public void commit() {
+        flush();
+        if (sent == 0) {
+            return;
+        }
+        if (commitWindow != null) {
+            try {
+                commitWindow.requestCommit(searchService).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Deferred search index commit failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the deferred search index commit", e);
+            }
+        } else {
+            searchService.commit();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Committed " + sent + " search operations sent in " + batches + " batches" +
+                         (commitWindow != null ? " within the commit window" : ""));
+        }
+        sent = 0;
+        batches = 0;
+    }
+
+    private void add(Operation operation) {
+        String key = operation.site + ":" + operation.id;
+        // remove first so the operation takes its new place in the order
+        pending.remove(key);
+        pending.put(key, operation);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private static class Operation {
+
+        final String site;
+        final String id;
+        final String xml;
+        final boolean ignoreRootInFieldNames;
+        final File file;
+        final Map<String, String> additionalFields;
+
+        Operation(String site, String id, String xml, boolean ignoreRootInFieldNames, File file,
+                  Map<String, String> additionalFields) {
+            this.site = site;
+            this.id = id;
+            this.xml = xml;
+            this.ignoreRootInFieldNames = ignoreRootInFieldNames;
+            this.file = file;
+            this.additionalFields = additionalFields;
+        }
+
+        void send(SearchService searchService) {
+            if (xml != null) {
+                searchService.update(site, id, xml, ignoreRootInFieldNames);
+            } else if (file != null) {
+                searchService.updateDocument(site, id, file, additionalFields);
+            } else {
+                searchService.delete(site, id);
+            }
+        }
+
+    }
+
+    /**
+     * Defers commits so all the ones requested within a window are done as one, on a daemon thread. Commits
+     * requested once the deferred one has started wait for the next one, as their operations may have been sent too
+     * late to be included.
+     */
+    public static class CommitWindow {
+
+        private final long window;
+        private final ScheduledExecutorService scheduler;
+        private Future<Void> scheduled;
+
+        /**
+         * @param name
+         *          name of the commit thread
+         * @param window
+         *          milliseconds a commit is deferred
+         */
+        public CommitWindow(final String name, long window) {
+            this.window = window;
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + "-commit");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+
+        /**
+         * @param searchService
+         * @return the deferred commit, failing if the commit fails
+         */
+        public synchronized Future<Void> requestCommit(final SearchService searchService) {
+            if (scheduled == null) {
+                scheduled = scheduler.schedule(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+                        synchronized (CommitWindow.this) {
+                            scheduled = null;
+                        }
+                        searchService.commit();
+                        return null;
+                    }
+
+                }, window, TimeUnit.MILLISECONDS);
+            }
+            return scheduled;
+        }
+
+        /**
+         * stop the commit thread, commits already deferred still run
+         */
+        public void shutdown() {
+            scheduler.shutdown();
+        }
+
+    }
+
+}
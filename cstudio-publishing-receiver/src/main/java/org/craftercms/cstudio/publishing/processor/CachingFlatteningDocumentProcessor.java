@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.search.batch.utils.XmlUtils;
+import org.craftercms.search.batch.utils.xml.DocumentProcessor;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * Flattens XML files like the {@code FlatteningDocumentProcessor} of Crafter Search, inserting the root element of
+ * each included file before its include element, but keeps the parsed included files in a cache shared by all the
+ * files it processes, so a component included by many pages is parsed once instead of once per page. Cached files
+ * are checked against their size and modification time before they're used, and the cache is bounded by the total
+ * size of the files it holds, evicting the least recently used ones.
+ *
+ * <p>With the include index enabled, the files each processed file ends up including are recorded in the
+ * {@link IncludeIndex} of its content folder.</p>
+ */
+public class CachingFlatteningDocumentProcessor implements DocumentProcessor {
+
+    private static final Log logger = LogFactory.getLog(CachingFlatteningDocumentProcessor.class);
+
+    public static final String DEFAULT_INCLUDE_ELEMENT_XPATH_QUERY = "//include";
+    public static final String DEFAULT_DISABLE_FLATTENING_ELEMENT = "disableFlattening";
+    public static final String DEFAULT_PAGES_ROOT = "/site/website";
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    protected String includeElementXPathQuery = DEFAULT_INCLUDE_ELEMENT_XPATH_QUERY;
+    protected String disableFlatteningElement = DEFAULT_DISABLE_FLATTENING_ELEMENT;
+    protected boolean disableNestedPageFlattening;
+    protected String pagesRoot = DEFAULT_PAGES_ROOT;
+    protected String charEncoding = CharEncoding.UTF_8;
+    protected boolean includeIndexEnabled;
+    private final DocumentCache cache;
+
+    public CachingFlatteningDocumentProcessor() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize
+     *          maximum total size in bytes of the files cached, 0 to disable the cache
+     */
+    public CachingFlatteningDocumentProcessor(long cacheSize) {
+        this.cache = new DocumentCache(cacheSize);
+    }
+
+    public void setIncludeElementXPathQuery(String includeElementXPathQuery) {
+        this.includeElementXPathQuery = includeElementXPathQuery;
+    }
+
+    public void setDisableFlatteningElement(String disableFlatteningElement) {
+        this.disableFlatteningElement = disableFlatteningElement;
+    }
+
+    /**
+     * set if pages included by other files are left as includes
+     */
+    public void setDisableNestedPageFlattening(boolean disableNestedPageFlattening) {
+        this.disableNestedPageFlattening = disableNestedPageFlattening;
+    }
+
+    /**
+     * set the folder of the pages, for {@link #setDisableNestedPageFlattening(boolean)}
+     */
+    public void setPagesRoot(String pagesRoot) {
+        this.pagesRoot = pagesRoot;
+    }
+
+    public void setCharEncoding(String charEncoding) {
+        this.charEncoding = charEncoding;
+    }
+
+    /**
+     * set if the includes of each processed file are recorded in the include index of its content folder
+     */
+    public void setIncludeIndexEnabled(boolean includeIndexEnabled) {
+        this.includeIndexEnabled = includeIndexEnabled;
+    }
+
+    @Override
+    public Document process(Document document, File file, String rootFolder) throws DocumentException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Flattening XML file " + file + "...");
+        }
+
+        List<File> flattenedFiles = new ArrayList<File>();
+        Set<String> includes = new LinkedHashSet<String>();
+        flattenedFiles.add(file);
+        flatten(document, file, rootFolder, flattenedFiles, includes);
+
+        if (includeIndexEnabled) {
+            File contentFolder = new File(rootFolder);
+            try {
+                IncludeIndex.getInstance(contentFolder).setIncludes(getLocation(contentFolder, file), includes);
+            } catch (IOException e) {
+                logger.warn("Unable to record the includes of " + file + " in the include index", e);
+            }
+        }
+
+        return document;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void flatten(Document document, File file, String rootFolder, List<File> flattenedFiles,
+                           Set<String> includes) throws DocumentException {
+        List<Element> includeElements = document.selectNodes(includeElementXPathQuery);
+        for (Element includeElement : includeElements) {
+            Element parent = includeElement.getParent();
+            if (parent == null || isFlatteningDisabled(parent)) {
+                continue;
+            }
+            String include = includeElement.getTextTrim();
+            if (StringUtils.isEmpty(include) || (disableNestedPageFlattening && isPage(include))) {
+                continue;
+            }
+            includes.add(StringUtils.prependIfMissing(include, "/"));
+
+            File includeFile = new File(rootFolder + File.separatorChar + include);
+            if (!includeFile.exists()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("No file found for include at " + includeFile);
+                }
+                continue;
+            }
+            // like the original processor, a file is only flattened once into each document
+            if (flattenedFiles.contains(includeFile)) {
+                logger.warn("Circular inclusion detected. File " + includeFile + " already included");
+                continue;
+            }
+            flattenedFiles.add(includeFile);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Include found in " + file + ": " + includeFile);
+            }
+
+            Document includeDocument = cache.get(includeFile);
+            flatten(includeDocument, includeFile, rootFolder, flattenedFiles, includes);
+
+            // the document is a copy of its own, its root can be moved instead of copied again
+            Element includeRoot = includeDocument.getRootElement();
+            includeDocument.remove(includeRoot);
+            List<Node> siblings = parent.content();
+            siblings.add(siblings.indexOf(includeElement), includeRoot);
+        }
+    }
+
+    protected boolean isFlatteningDisabled(Element parent) {
+        Element disableFlatteningNode = parent.element(disableFlatteningElement);
+        return disableFlatteningNode != null && Boolean.parseBoolean(disableFlatteningNode.getTextTrim());
+    }
+
+    protected boolean isPage(String include) {
+        return StringUtils.prependIfMissing(include, "/").startsWith(pagesRoot);
+    }
+
+    private static String getLocation(File contentFolder, File file) {
+        Path folder = contentFolder.getAbsoluteFile().toPath().normalize();
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        return "/" + folder.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * parsed files by path, least recently used first
+     */
+    private class DocumentCache {
+
+        private final long maxSize;
+        private final Map<String, CachedDocument> documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f,
+                                                                                                          true);
+        private long size;
+
+        private DocumentCache(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return a copy of the parsed file, that can be modified
+         */
+        private Document get(File file) throws DocumentException {
+            String path = file.getPath();
+            long length = file.length();
+            long lastModified = file.lastModified();
+            synchronized (this) {
+                CachedDocument cached = documents.get(path);
+                if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                    return DocumentHelper.createDocument(cached.document.getRootElement().createCopy());
+                }
+            }
+
+            Document document = XmlUtils.readXml(file, charEncoding);
+            if (length > maxSize || file.length() != length || file.lastModified() != lastModified) {
+                // too big to cache, or changed while it was read
+                return document;
+            }
+            Document copy = DocumentHelper.createDocument(document.getRootElement().createCopy());
+            synchronized (this) {
+                CachedDocument replaced = documents.put(path, new CachedDocument(document, length, lastModified));
+                size += length - (replaced != null ? replaced.length : 0);
+                for (Iterator<CachedDocument> eldest = documents.values().iterator(); size > maxSize;) {
+                    size -= eldest.next().length;
+                    eldest.remove();
+                }
+            }
+            return copy;
+        }
+
+    }
+
+    private static class CachedDocument {
+
+        final Document document;
+        final long length;
+        final long lastModified;
+
+        CachedDocument(Document document, long length, long lastModified) {
+            this.document = document;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+}
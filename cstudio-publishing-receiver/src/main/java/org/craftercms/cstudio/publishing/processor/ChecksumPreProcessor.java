@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * Computes the checksum of each file as it is written and rejects the publish if it doesn't match the checksum sent
+ * for the file. The checksum of a file part is read from the parameter named after the part, with Checksum in place
+ * of File (contentChecksum1 for contentFile1).
+ */
+public class ChecksumPreProcessor extends AbstractPublishingPreProcessor {
+
+    private static final Log LOGGER = LogFactory.getLog(ChecksumPreProcessor.class);
+
+    protected String algorithm = "MD5";
+    protected boolean checksumRequired = false;
+
+    @Override
+    public InputStream process(final String fieldName, final String path, InputStream content,
+                               Map<String, String> parameters, PublishingTarget target) throws IOException {
+        final String expected = parameters.get(getChecksumParamName(fieldName));
+        if (StringUtils.isEmpty(expected)) {
+            if (checksumRequired) {
+                throw new ContentRejectedException("No checksum sent for " + path);
+            }
+            if (!LOGGER.isDebugEnabled()) {
+                return content;
+            }
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Checksum algorithm " + algorithm + " not available", e);
+        }
+
+        return new DigestInputStream(content, digest) {
+
+            private boolean verified = false;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    verify();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count < 0) {
+                    verify();
+                }
+                return count;
+            }
+
+            private void verify() throws IOException {
+                if (verified) {
+                    return;
+                }
+                verified = true;
+                String actual = Hex.encodeHexString(getMessageDigest().digest());
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(algorithm + " of " + path + ": " + actual);
+                }
+                if (StringUtils.isNotEmpty(expected) && !expected.equalsIgnoreCase(actual)) {
+                    throw new ContentRejectedException("Checksum mismatch for " + path + ": expected " + expected +
+                                                       ", received " + actual);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * get the name of the parameter holding the checksum of a file part
+     *
+     * @param fieldName
+     * @return
+     */
+    protected String getChecksumParamName(String fieldName) {
+        return fieldName.replace("File", "Checksum");
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param checksumRequired
+     *          reject files sent without a checksum
+     */
+    public void setChecksumRequired(boolean checksumRequired) {
+        this.checksumRequired = checksumRequired;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.craftercms.cstudio.publishing.target.CompactedLog;
+
+/**
+ * Persistent index of the files each XML file of a content folder includes, directly or through other includes, and
+ * of the files that include each file, so the pages affected by a component update can be found without searching.
+ * Files are identified by their location in the content folder, like /site/components/header.xml. The index is
+ * filled in as files are flattened, so it only knows the includes of files flattened since it was enabled, unless
+ * it's been marked complete after the includes of every file of the content folder were recorded.
+ *
+ * <p>Like the hash index of a target, it's kept next to the content folder as a {@link CompactedLog}, compacted once
+ * it grows to twice the number of indexed files. There's a single index per content folder, shared by all the
+ * processors that use it.</p>
+ */
+public class IncludeIndex {
+
+    public static final String INDEX_FILE_SUFFIX = "-includes";
+
+    /** line of the log recording that the index is complete **/
+    private static final String COMPLETE = "*";
+
+    private static final Map<Path, IncludeIndex> indexes = new HashMap<Path, IncludeIndex>();
+
+    private final CompactedLog log;
+    private Map<String, Set<String>> includes;
+    private final Map<String, Set<String>> includedBy = new HashMap<String, Set<String>>();
+    private boolean complete;
+
+    /**
+     * get the index of a content folder
+     *
+     * @param contentFolder
+     * @return the index, the same for every processor using the folder
+     */
+    public static IncludeIndex getInstance(File contentFolder) {
+        Path key = contentFolder.getAbsoluteFile().toPath().normalize();
+        synchronized (indexes) {
+            IncludeIndex index = indexes.get(key);
+            if (index == null) {
+                index = new IncludeIndex(key);
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private IncludeIndex(Path contentFolder) {
+        this.log = new CompactedLog(contentFolder.resolveSibling("." + contentFolder.getFileName() + INDEX_FILE_SUFFIX)
+                                                .toFile(), new LoggedIncludes());
+    }
+
+    /**
+     * record the files a file includes, replacing the ones recorded before
+     *
+     * @param location
+     *          location of the file
+     * @param included
+     *          locations of the files it includes, directly or not
+     * @throws IOException
+     */
+    public synchronized void setIncludes(String location, Collection<String> included) throws IOException {
+        Set<String> previous = getIncludes().get(location);
+        if (previous != null ? previous.equals(new HashSet<String>(included)) : included.isEmpty()) {
+            return;
+        }
+        put(location, included);
+        write(location, included);
+        log.flush();
+    }
+
+    /**
+     * forget the includes of deleted files
+     *
+     * @param locations
+     * @throws IOException
+     */
+    public synchronized void remove(Collection<String> locations) throws IOException {
+        boolean removed = false;
+        for (String location : locations) {
+            if (getIncludes().containsKey(location)) {
+                put(location, Collections.<String>emptySet());
+                log.write(CompactedLog.REMOVED, location);
+                removed = true;
+            }
+        }
+        if (removed) {
+            log.flush();
+        }
+    }
+
+    /**
+     * @param location
+     * @return the locations of the files that include the file, directly or not
+     * @throws IOException
+     */
+    public synchronized Set<String> getIncludingFiles(String location) throws IOException {
+        getIncludes();
+        Set<String> including = includedBy.get(location);
+        return including != null ? new HashSet<String>(including) : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return the locations of the files with includes recorded
+     * @throws IOException
+     */
+    public synchronized Set<String> getLocations() throws IOException {
+        return new HashSet<String>(getIncludes().keySet());
+    }
+
+    /**
+     * @return if the includes of every file of the content folder have been recorded
+     * @throws IOException
+     */
+    public synchronized boolean isComplete() throws IOException {
+        getIncludes();
+        return complete;
+    }
+
+    /**
+     * record that the includes of every file of the content folder have been recorded, once they've been
+     *
+     * @throws IOException
+     */
+    public synchronized void markComplete() throws IOException {
+        if (isComplete()) {
+            return;
+        }
+        complete = true;
+        log.write(COMPLETE);
+        log.flush();
+    }
+
+    private void put(String location, Collection<String> included) {
+        Set<String> previous = included.isEmpty() ? includes.remove(location) :
+                               includes.put(location, new LinkedHashSet<String>(included));
+        if (previous != null) {
+            for (String include : previous) {
+                Set<String> including = includedBy.get(include);
+                if (including != null) {
+                    including.remove(location);
+                    if (including.isEmpty()) {
+                        includedBy.remove(include);
+                    }
+                }
+            }
+        }
+        for (String include : included) {
+            Set<String> including = includedBy.get(include);
+            if (including == null) {
+                including = new HashSet<String>();
+                includedBy.put(include, including);
+            }
+            including.add(location);
+        }
+    }
+
+    private Map<String, Set<String>> getIncludes() throws IOException {
+        if (includes == null) {
+            includes = new HashMap<String, Set<String>>();
+            log.load();
+        }
+        return includes;
+    }
+
+    private void write(String location, Collection<String> included) throws IOException {
+        List<String> fields = new ArrayList<String>(included.size() + 2);
+        fields.add(CompactedLog.ADDED);
+        fields.add(location);
+        fields.addAll(included);
+        log.write(fields.toArray(new String[fields.size()]));
+    }
+
+    /**
+     * lines of the log are the files whose includes were recorded, followed by their includes, the files removed,
+     * and the marker of a complete index
+     */
+    private class LoggedIncludes implements CompactedLog.Index {
+
+        @Override
+        public boolean apply(String line) {
+            String[] fields = line.split(CompactedLog.SEPARATOR);
+            if (line.equals(COMPLETE)) {
+                complete = true;
+            } else if (fields.length == 2 && fields[0].equals(CompactedLog.REMOVED)) {
+                put(fields[1], Collections.<String>emptySet());
+            } else if (fields.length >= 2 && fields[0].equals(CompactedLog.ADDED)) {
+                Set<String> included = new LinkedHashSet<String>();
+                for (int i = 2; i < fields.length; i++) {
+                    included.add(fields[i]);
+                }
+                put(fields[1], included);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return includes.size();
+        }
+
+        @Override
+        public void writeEntries(CompactedLog log) throws IOException {
+            for (Map.Entry<String, Set<String>> indexed : includes.entrySet()) {
+                write(indexed.getKey(), indexed.getValue());
+            }
+            if (complete) {
+                log.write(COMPLETE);
+            }
+        }
+
+    }
+
+}
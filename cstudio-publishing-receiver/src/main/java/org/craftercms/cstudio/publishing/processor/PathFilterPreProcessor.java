@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * Rejects publishes with files whose path doesn't match any of the include patterns, matches one of the exclude
+ * patterns, or that are larger than a max size. The size is checked as the file is written.
+ */
+public class PathFilterPreProcessor extends AbstractPublishingPreProcessor {
+
+    protected List<Pattern> includePatterns;
+    protected List<Pattern> excludePatterns;
+    protected long maxFileSize = -1;
+
+    @Override
+    public InputStream process(String fieldName, final String path, InputStream content,
+                               Map<String, String> parameters, PublishingTarget target) throws IOException {
+        if (includePatterns != null && !matchesAny(includePatterns, path)) {
+            throw new ContentRejectedException(path + " doesn't match any of the allowed paths");
+        }
+        if (excludePatterns != null && matchesAny(excludePatterns, path)) {
+            throw new ContentRejectedException(path + " matches a rejected path");
+        }
+        if (maxFileSize < 0) {
+            return content;
+        }
+
+        return new CountingInputStream(content) {
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                checkSize();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                checkSize();
+                return count;
+            }
+
+            @Override
+            public int read(byte[] b) throws IOException {
+                int count = super.read(b);
+                checkSize();
+                return count;
+            }
+
+            private void checkSize() throws IOException {
+                if (getByteCount() > maxFileSize) {
+                    throw new ContentRejectedException(path + " is larger than " + maxFileSize + " bytes");
+                }
+            }
+
+        };
+    }
+
+    private boolean matchesAny(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Pattern> compile(List<String> regexes) {
+        List<Pattern> patterns = new ArrayList<Pattern>(regexes.size());
+        for (String regex : regexes) {
+            patterns.add(Pattern.compile(regex));
+        }
+        return patterns;
+    }
+
+    /**
+     * @param includePatterns
+     *          regexes, a file must match one of them
+     */
+    public void setIncludePatterns(List<String> includePatterns) {
+        this.includePatterns = compile(includePatterns);
+    }
+
+    /**
+     * @param excludePatterns
+     *          regexes, a file must not match any of them
+     */
+    public void setExcludePatterns(List<String> excludePatterns) {
+        this.excludePatterns = compile(excludePatterns);
+    }
+
+    /**
+     * @param maxFileSize
+     *          max size of a file in bytes, -1 for no limit
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+import org.craftercms.cstudio.publishing.exception.PublishingException;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * Runs a published change set through the default post processor and the post processors of a target. The post
+ * processors run as a graph built from their order and dependsOn list, see {@link ProcessorGraphExecutor}.
+ */
+public class PostProcessorChain {
+
+    private static final Log LOGGER = LogFactory.getLog(PostProcessorChain.class);
+
+    public static final String DEFAULT_PROCESSOR_KEY = "default";
+
+    /**
+     * Tracks which post processors of the chain already ran for a change set.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param processorKey
+         * @return true if the post processor already ran and must be skipped
+         */
+        boolean isCompleted(String processorKey);
+
+        /**
+         * called after a post processor ran successfully
+         *
+         * @param processorKey
+         */
+        void processorCompleted(String processorKey);
+
+        /**
+         * called after a post processor ran, whether it succeeded or not
+         *
+         * @param processorKey
+         * @param time
+         *          milliseconds the post processor took
+         * @param error
+         *          the error of the post processor, null if it succeeded
+         */
+        void processorFinished(String processorKey, long time, Throwable error);
+
+    }
+
+    /**
+     * run the change set through the target's post processors. A failing default post processor is logged and
+     * doesn't stop the chain, while the first failing post processor stops it.
+     *
+     * @param changeSet
+     * @param parameters
+     * @param target
+     * @throws PublishingException
+     *          if one of the post processors failed
+     */
+    public void process(PublishedChangeSet changeSet, Map<String, String> parameters,
+                        PublishingTarget target) throws PublishingException {
+        process(changeSet, parameters, target, null);
+    }
+
+    /**
+     * run the change set through the target's post processors, skipping the ones the listener reports as completed
+     *
+     * @param changeSet
+     * @param parameters
+     * @param target
+     * @param listener
+     *          notified of each post processor that ran, can be null
+     * @throws PublishingException
+     *          if one of the post processors failed
+     */
+    public void process(PublishedChangeSet changeSet, Map<String, String> parameters, PublishingTarget target,
+                        ProgressListener listener) throws PublishingException {
+        if (target.isDefaultProcessingEnabled() && !isCompleted(listener, DEFAULT_PROCESSOR_KEY)) {
+            long start = System.currentTimeMillis();
+            PublishingException error = null;
+            try {
+                target.getDefaultPostProcessor().doProcess(changeSet, parameters, target);
+            } catch (PublishingException e) {
+                LOGGER.error("Error while running a default post processor", e);
+                error = e;
+            }
+            finished(listener, DEFAULT_PROCESSOR_KEY, start, error);
+            completed(listener, DEFAULT_PROCESSOR_KEY);
+        }
+
+        List<PublishingProcessor> postProcessors = target.getPostProcessors();
+        if (postProcessors != null && !postProcessors.isEmpty()) {
+            List<ProcessorGraphExecutor.Node> nodes = new ArrayList<ProcessorGraphExecutor.Node>();
+            for (int i = 0; i < postProcessors.size(); i++) {
+                nodes.add(new PostProcessorNode(postProcessors.get(i), getProcessorKey(i, postProcessors.get(i)),
+                                                changeSet, parameters, target, listener));
+            }
+            getGraphExecutor(target).execute(nodes);
+        }
+    }
+
+    /**
+     * get the executor for the post processors of a target, running them concurrently when the target has a
+     * postProcessingParallelism or postProcessingTimeout parameter
+     *
+     * @param target
+     * @return
+     */
+    protected ProcessorGraphExecutor getGraphExecutor(PublishingTarget target) {
+        long timeout = target.getPostProcessingTimeout();
+        if (target.getPostProcessingParallelism() > 1 || timeout > 0) {
+            return new ProcessorGraphExecutor(target.getPostProcessorExecutor(), timeout);
+        } else {
+            return new ProcessorGraphExecutor();
+        }
+    }
+
+    /**
+     * get the key identifying a post processor of a target across restarts
+     *
+     * @param index
+     *          position of the processor in the target's post processors
+     * @param processor
+     * @return
+     */
+    protected String getProcessorKey(int index, PublishingProcessor processor) {
+        String name = processor.getName() != null ? processor.getName() : processor.getClass().getName();
+        return index + ":" + name;
+    }
+
+    private static boolean isCompleted(ProgressListener listener, String processorKey) {
+        return listener != null && listener.isCompleted(processorKey);
+    }
+
+    private static void completed(ProgressListener listener, String processorKey) {
+        if (listener != null) {
+            listener.processorCompleted(processorKey);
+        }
+    }
+
+    private static void finished(ProgressListener listener, String processorKey, long start, Throwable error) {
+        if (listener != null) {
+            listener.processorFinished(processorKey, System.currentTimeMillis() - start, error);
+        }
+    }
+
+    /**
+     * a post processor of a target as a node of the processor graph
+     */
+    private static class PostProcessorNode implements ProcessorGraphExecutor.Node {
+
+        private final PublishingProcessor processor;
+        private final String processorKey;
+        private final PublishedChangeSet changeSet;
+        private final Map<String, String> parameters;
+        private final PublishingTarget target;
+        private final ProgressListener listener;
+
+        PostProcessorNode(PublishingProcessor processor, String processorKey, PublishedChangeSet changeSet,
+                          Map<String, String> parameters, PublishingTarget target, ProgressListener listener) {
+            this.processor = processor;
+            this.processorKey = processorKey;
+            this.changeSet = changeSet;
+            this.parameters = parameters;
+            this.target = target;
+            this.listener = listener;
+        }
+
+        @Override
+        public String getName() {
+            return processor.getName();
+        }
+
+        @Override
+        public int getOrder() {
+            return processor.getOrder();
+        }
+
+        @Override
+        public List<String> getDependsOn() {
+            return processor.getDependsOn();
+        }
+
+        @Override
+        public void execute() throws PublishingException {
+            if (isCompleted(listener, processorKey)) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Skipping " + processorKey + ", it already ran");
+                }
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Running files through " + processor.getName());
+            }
+            long start = System.currentTimeMillis();
+            try {
+                processor.doProcess(changeSet, parameters, target);
+            } catch (PublishingException e) {
+                finished(listener, processorKey, start, e);
+                throw e;
+            } catch (RuntimeException e) {
+                finished(listener, processorKey, start, e);
+                throw new PublishingException("Post processor " + processor.getName() + " failed", e);
+            }
+            finished(listener, processorKey, start, null);
+            completed(listener, processorKey);
+        }
+
+    }
+
+}
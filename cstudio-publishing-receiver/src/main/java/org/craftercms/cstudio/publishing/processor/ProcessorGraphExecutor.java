@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.PublishingException;
+
+/**
+ * Runs processors as a dependency graph. A processor runs after the processors it names in its dependsOn list and
+ * after every processor with a lower order, so processors with the same order and no dependencies between them are
+ * independent. Without an executor the graph runs on the calling thread, keeping the list order among independent
+ * processors. With an executor independent processors run concurrently, and the whole graph can be given a timeout.
+ *
+ * <p>The first failing processor stops the graph: processors already running are waited for but no new ones are
+ * started.</p>
+ */
+public class ProcessorGraphExecutor {
+
+    private static final Log LOGGER = LogFactory.getLog(ProcessorGraphExecutor.class);
+
+    /**
+     * A processor in the graph.
+     */
+    public interface Node {
+
+        String getName();
+
+        int getOrder();
+
+        /**
+         * @return names of the processors this one must run after, can be null
+         */
+        List<String> getDependsOn();
+
+        void execute() throws PublishingException;
+
+    }
+
+    private final ExecutorService executor;
+    private final long timeout;
+
+    /**
+     * create an executor that runs the graph on the calling thread
+     */
+    public ProcessorGraphExecutor() {
+        this(null, 0);
+    }
+
+    /**
+     * @param executor
+     *          pool to run independent processors concurrently, or null to run them on the calling thread
+     * @param timeout
+     *          max milliseconds the whole graph can take when an executor is given, 0 for no limit
+     */
+    public ProcessorGraphExecutor(ExecutorService executor, long timeout) {
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+    /**
+     * run all the nodes
+     *
+     * @param nodes
+     *          nodes in their configured order
+     * @throws PublishingException
+     *          if a node failed, the graph has a cycle or it didn't finish in time
+     */
+    public void execute(List<? extends Node> nodes) throws PublishingException {
+        Graph graph = new Graph(nodes);
+        if (executor == null) {
+            for (Node node : graph.sort()) {
+                node.execute();
+            }
+        } else {
+            graph.sort();
+            executeConcurrently(graph);
+        }
+    }
+
+    private void executeConcurrently(Graph graph) throws PublishingException {
+        CompletionService<Node> completionService = new ExecutorCompletionService<Node>(executor);
+        Map<Future<Node>, Node> running = new HashMap<Future<Node>, Node>();
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        Throwable failure = null;
+
+        for (Node node : graph.getReady()) {
+            running.put(completionService.submit(toCallable(node)), node);
+        }
+        try {
+            while (!running.isEmpty()) {
+                Future<Node> future;
+                if (deadline == Long.MAX_VALUE) {
+                    future = completionService.take();
+                } else {
+                    future = completionService.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                                                    TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        cancel(running);
+                        throw new PublishingException("Processors " + names(running.values()) +
+                                                      " didn't finish within " + timeout + " ms");
+                    }
+                }
+                Node node = running.remove(future);
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        LOGGER.error("Processor " + node.getName() + " also failed", e.getCause());
+                    }
+                }
+                if (failure == null) {
+                    for (Node ready : graph.completed(node)) {
+                        running.put(completionService.submit(toCallable(ready)), ready);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(running);
+            throw new PublishingException("Interrupted while waiting for processors " + names(running.values()), e);
+        }
+
+        if (failure instanceof PublishingException) {
+            throw (PublishingException) failure;
+        } else if (failure != null) {
+            throw new PublishingException(failure);
+        }
+    }
+
+    private Callable<Node> toCallable(final Node node) {
+        return new Callable<Node>() {
+
+            @Override
+            public Node call() throws Exception {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Running processor " + node.getName());
+                }
+                node.execute();
+                return node;
+            }
+
+        };
+    }
+
+    private void cancel(Map<Future<Node>, Node> running) {
+        for (Future<Node> future : running.keySet()) {
+            future.cancel(true);
+        }
+    }
+
+    private static List<String> names(Iterable<Node> nodes) {
+        List<String> names = new ArrayList<String>();
+        for (Node node : nodes) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+
+    /**
+     * dependencies between nodes, consumed as nodes complete
+     */
+    private static class Graph {
+
+        private final List<? extends Node> nodes;
+        private final Map<Node, List<Node>> dependents = new IdentityHashMap<Node, List<Node>>();
+        private final Map<Node, Integer> pendingDependencies = new IdentityHashMap<Node, Integer>();
+
+        Graph(List<? extends Node> nodes) throws PublishingException {
+            this.nodes = nodes;
+            Map<String, List<Node>> byName = new HashMap<String, List<Node>>();
+            for (Node node : nodes) {
+                dependents.put(node, new ArrayList<Node>());
+                pendingDependencies.put(node, 0);
+                List<Node> named = byName.get(node.getName());
+                if (named == null) {
+                    named = new ArrayList<Node>();
+                    byName.put(node.getName(), named);
+                }
+                named.add(node);
+            }
+            for (Node node : nodes) {
+                for (Node other : nodes) {
+                    if (other.getOrder() < node.getOrder()) {
+                        addDependency(node, other);
+                    }
+                }
+                if (node.getDependsOn() != null) {
+                    for (String dependency : node.getDependsOn()) {
+                        List<Node> named = byName.get(dependency);
+                        if (named == null) {
+                            throw new PublishingException("Processor " + node.getName() + " depends on unknown " +
+                                                          "processor " + dependency);
+                        }
+                        for (Node other : named) {
+                            if (other.getOrder() >= node.getOrder()) {
+                                addDependency(node, other);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void addDependency(Node node, Node dependency) {
+            dependents.get(dependency).add(node);
+            pendingDependencies.put(node, pendingDependencies.get(node) + 1);
+        }
+
+        /**
+         * @return the nodes without pending dependencies, in list order
+         */
+        List<Node> getReady() {
+            List<Node> ready = new ArrayList<Node>();
+            for (Node node : nodes) {
+                if (pendingDependencies.get(node) == 0) {
+                    ready.add(node);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * mark a node as completed
+         *
+         * @return the nodes that became ready
+         */
+        List<Node> completed(Node node) {
+            List<Node> ready = new ArrayList<Node>();
+            for (Node dependent : dependents.get(node)) {
+                int pending = pendingDependencies.get(dependent) - 1;
+                pendingDependencies.put(dependent, pending);
+                if (pending == 0) {
+                    ready.add(dependent);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * order the nodes so each comes after its dependencies, keeping the list order otherwise. Leaves the graph
+         * untouched.
+         *
+         * @throws PublishingException
+         *          if there's a cycle
+         */
+        List<Node> sort() throws PublishingException {
+            Map<Node, Integer> pending = new IdentityHashMap<Node, Integer>(pendingDependencies);
+            List<Node> sorted = new ArrayList<Node>(nodes.size());
+            boolean[] done = new boolean[nodes.size()];
+            while (sorted.size() < nodes.size()) {
+                Node next = null;
+                for (int i = 0; i < nodes.size(); i++) {
+                    if (!done[i] && pending.get(nodes.get(i)) == 0) {
+                        next = nodes.get(i);
+                        done[i] = true;
+                        break;
+                    }
+                }
+                if (next == null) {
+                    List<Node> cycle = new ArrayList<Node>();
+                    for (int i = 0; i < nodes.size(); i++) {
+                        if (!done[i]) {
+                            cycle.add(nodes.get(i));
+                        }
+                    }
+                    throw new PublishingException("Circular dependency between processors " + names(cycle));
+                }
+                sorted.add(next);
+                for (Node dependent : dependents.get(next)) {
+                    pending.put(dependent, pending.get(dependent) - 1);
+                }
+            }
+            return sorted;
+        }
+
+    }
+
+}
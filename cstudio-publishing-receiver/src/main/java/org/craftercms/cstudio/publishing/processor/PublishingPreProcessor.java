@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * processor that runs on each published file before it is written to the target. Pre-processors see the file as a
+ * stream, so they can validate, transform or inspect it while it is written without reading it twice. They must be
+ * thread safe, since the files of a publish can be written concurrently. Files of a target with pre-processors are
+ * written next to their final location and only moved into place once fully read, so a rejected file never replaces
+ * the current one.
+ */
+public interface PublishingPreProcessor {
+
+	/**
+	 * process a file about to be written. The returned stream is what gets written, so a pre-processor that only
+	 * inspects the file wraps the given stream and one that doesn't care about the file returns it as is. To veto the
+	 * file, and with it the whole publish, throw a
+	 * {@link org.craftercms.cstudio.publishing.exception.ContentRejectedException} from this method or while the
+	 * returned stream is read.
+	 *
+	 * @param fieldName
+	 * 			the request part the file came in
+	 * @param path
+	 * 			path of the file in the content or metadata folder of the target
+	 * @param content
+	 * @param parameters
+	 * @param target
+	 * @return the content to write
+	 * @throws IOException
+	 */
+	InputStream process(String fieldName, String path, InputStream content, Map<String, String> parameters,
+						PublishingTarget target) throws IOException;
+
+	/**
+	 * get the pre-processor's name
+	 *
+	 * @return
+	 */
+	String getName();
+
+}
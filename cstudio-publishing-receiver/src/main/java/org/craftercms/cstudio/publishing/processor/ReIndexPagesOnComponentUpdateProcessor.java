@@ -16,11 +16,23 @@
  */
 package org.craftercms.cstudio.publishing.processor;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +43,10 @@ import org.craftercms.cstudio.publishing.target.PublishingTarget;
 import org.craftercms.search.service.Query;
 import org.craftercms.search.service.SearchService;
 import org.craftercms.search.service.impl.SolrQuery;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Node;
+import org.dom4j.io.SAXReader;
 import org.springframework.beans.factory.annotation.Required;
 
 import static org.craftercms.cstudio.publishing.processor.SearchIndexingProcessor.DEFAULT_DEFAULT_INDEX_ID_FORMAT;
@@ -39,6 +55,14 @@ import static org.craftercms.cstudio.publishing.processor.SearchIndexingProcesso
  * Scans the created and updated files for component updates, then executes a search query to retrieve the pages
  * that reference the components. This pages are added to a new updated list, which is then passed to the actual
  * search indexing processor (not added to the original updated list since the updates are only for search purposes).
+ * <p>
+ * With {@code useIncludeIndex} the pages are found in the {@link IncludeIndex} of the content folder instead, without
+ * querying the search engine. The processor keeps the index up to date with the includes of the XML files it sees, and
+ * builds it from the content folder until a full build has been recorded in the index.
+ * <p>
+ * When searching, {@code queryBatchSize} components are ORed into each query, and the results are read a page of
+ * {@code pagesQueryRows} at a time, with a cursor when the search engine returns one, so no page is left out when a
+ * component is included by more pages than a single response holds.
  *
  * @author avasquez
  */
@@ -48,6 +72,13 @@ public class ReIndexPagesOnComponentUpdateProcessor extends AbstractPublishingPr
 
     public static final String DEFAULT_COMPONENTS_ROOT = "/site/components";
     public static final String DEFAULT_PAGES_QUERY_PATTERN = "*:%s";
+    public static final String DEFAULT_INCLUDE_ELEMENT_XPATH_QUERY = "//include";
+    public static final int DEFAULT_QUERY_BATCH_SIZE = 1;
+    public static final int DEFAULT_PAGES_QUERY_ROWS = 100;
+    public static final String DEFAULT_PAGES_QUERY_SORT = "id asc";
+    public static final String CURSOR_MARK_PARAM = "cursorMark";
+    public static final String NEXT_CURSOR_MARK_KEY = "nextCursorMark";
+    public static final String CURSOR_MARK_START = "*";
 
     protected String indexId;
     protected String defaultIndexIdFormat;
@@ -57,11 +88,20 @@ public class ReIndexPagesOnComponentUpdateProcessor extends AbstractPublishingPr
     protected String pagesQueryPattern;
     protected SearchService searchService;
     protected PublishingProcessor actualIndexingProcessor;
+    protected boolean useIncludeIndex;
+    protected String includeElementXPathQuery;
+    protected int queryBatchSize;
+    protected int pagesQueryRows;
+    protected String pagesQuerySort;
 
     public ReIndexPagesOnComponentUpdateProcessor() {
         defaultIndexIdFormat = DEFAULT_DEFAULT_INDEX_ID_FORMAT;
         componentsRoot = DEFAULT_COMPONENTS_ROOT;
         pagesQueryPattern = DEFAULT_PAGES_QUERY_PATTERN;
+        includeElementXPathQuery = DEFAULT_INCLUDE_ELEMENT_XPATH_QUERY;
+        queryBatchSize = DEFAULT_QUERY_BATCH_SIZE;
+        pagesQueryRows = DEFAULT_PAGES_QUERY_ROWS;
+        pagesQuerySort = DEFAULT_PAGES_QUERY_SORT;
     }
 
     public void setIndexId(String indexId) {
@@ -88,6 +128,37 @@ public class ReIndexPagesOnComponentUpdateProcessor extends AbstractPublishingPr
         this.pagesQueryPattern = pagesQueryPattern;
     }
 
+    public void setUseIncludeIndex(boolean useIncludeIndex) {
+        this.useIncludeIndex = useIncludeIndex;
+    }
+
+    public void setIncludeElementXPathQuery(String includeElementXPathQuery) {
+        this.includeElementXPathQuery = includeElementXPathQuery;
+    }
+
+    /**
+     * Sets the number of components ORed into each query for the pages that include them. 1 sends a query per
+     * component.
+     */
+    public void setQueryBatchSize(int queryBatchSize) {
+        this.queryBatchSize = Math.max(1, queryBatchSize);
+    }
+
+    /**
+     * Sets the number of pages returned by each request of a query.
+     */
+    public void setPagesQueryRows(int pagesQueryRows) {
+        this.pagesQueryRows = Math.max(1, pagesQueryRows);
+    }
+
+    /**
+     * Sets the sort of the pages query, which must end with the unique key of the index to page through the results
+     * with a cursor.
+     */
+    public void setPagesQuerySort(String pagesQuerySort) {
+        this.pagesQuerySort = pagesQuerySort;
+    }
+
     @Required
     public void setSearchService(SearchService searchService) {
         this.searchService = searchService;
@@ -107,19 +178,33 @@ public class ReIndexPagesOnComponentUpdateProcessor extends AbstractPublishingPr
         List<String> updatedFiles = changeSet.getUpdatedFiles();
         List<String> deletedFiles = changeSet.getDeletedFiles();
         List<String> newUpdatedFiles = new ArrayList<>(updatedFiles);
+        Set<String> filesBeingUpdated = new HashSet<>(createdFiles);
+        filesBeingUpdated.addAll(updatedFiles);
+        IncludeIndex includeIndex = null;
+
+        if (useIncludeIndex) {
+            includeIndex = getIncludeIndex(siteName, target, createdFiles, updatedFiles, deletedFiles);
+        }
+
+        List<String> components = new ArrayList<>();
 
         for (String path : createdFiles) {
             if (isComponent(path)) {
-                addPagesThatIncludeComponentToUpdatedFiles(indexId, path, createdFiles, newUpdatedFiles);
+                components.add(path);
             }
         }
 
         for (String path : updatedFiles) {
             if (isComponent(path)) {
-                addPagesThatIncludeComponentToUpdatedFiles(indexId, path, createdFiles, newUpdatedFiles);
+                components.add(path);
             }
         }
 
+        if (!components.isEmpty()) {
+            Set<String> pages = getPagesThatIncludeComponents(indexId, includeIndex, components);
+            addPagesToUpdatedFiles(pages, filesBeingUpdated, newUpdatedFiles);
+        }
+
         doIndexing(new PublishedChangeSet(createdFiles, newUpdatedFiles, deletedFiles), parameters, target);
     }
 
@@ -128,53 +213,258 @@ public class ReIndexPagesOnComponentUpdateProcessor extends AbstractPublishingPr
         actualIndexingProcessor.doProcess(changeSet, parameters, target);
     }
 
+    /**
+     * find the pages that include any of the components, in the include index if there's one, by searching otherwise
+     */
+    protected Set<String> getPagesThatIncludeComponents(String indexId, IncludeIndex includeIndex,
+                                                        List<String> components) {
+        if (includeIndex != null) {
+            try {
+                Set<String> pages = new LinkedHashSet<>();
+                for (String component : components) {
+                    pages.addAll(getPagesThatIncludeComponent(includeIndex, component));
+                }
+
+                return pages;
+            } catch (IOException e) {
+                logger.error("Unable to read the include index, searching for the pages that include the updated " +
+                             "components instead", e);
+            }
+        }
+
+        return searchPagesThatIncludeComponents(indexId, components);
+    }
+
+    /**
+     * search the pages that include any of the components, {@code queryBatchSize} components per query, reading all
+     * the results of each query
+     */
     @SuppressWarnings("unchecked")
-    protected List<String> getPagesThatIncludeComponent(String indexId, String componentPath) {
-        Query query = createPagesThatIncludeComponentQuery(componentPath);
-        Map<String, Object> result = searchService.search(indexId, query);
-        Map<String, Object> response = (Map<String, Object>)result.get("response");
-        List<Map<String, Object>> documents = (List<Map<String, Object>>)response.get("documents");
-        List<String> pages = new ArrayList<>();
+    protected Set<String> searchPagesThatIncludeComponents(String indexId, List<String> components) {
+        Set<String> pages = new LinkedHashSet<>();
+
+        for (int i = 0; i < components.size(); i += queryBatchSize) {
+            List<String> batch = components.subList(i, Math.min(i + queryBatchSize, components.size()));
+            String cursorMark = CURSOR_MARK_START;
+            int start = 0;
+            int requests = 0;
+
+            while (true) {
+                Query query = createPagesThatIncludeComponentsQuery(batch, start, cursorMark);
+                Map<String, Object> result = searchService.search(indexId, query);
+                Map<String, Object> response = (Map<String, Object>)result.get("response");
+                List<Map<String, Object>> documents = (List<Map<String, Object>>)response.get("documents");
+                requests++;
+
+                for (Map<String, Object> document : documents) {
+                    pages.add((String)document.get("localId"));
+                }
+
+                if (documents.size() < pagesQueryRows) {
+                    break;
+                }
+
+                String nextCursorMark = (String)result.get(NEXT_CURSOR_MARK_KEY);
+                if (nextCursorMark != null) {
+                    // the cursor stops moving once all the results have been read
+                    if (documents.isEmpty() || nextCursorMark.equals(cursorMark)) {
+                        break;
+                    }
+                    cursorMark = nextCursorMark;
+                } else {
+                    // no cursor support, page by offset instead
+                    Number numFound = (Number)response.get("numFound");
+                    start += documents.size();
+                    cursorMark = null;
+                    if (documents.isEmpty() || numFound == null || start >= numFound.longValue()) {
+                        break;
+                    }
+                }
+            }
 
-        for (Map<String, Object> document : documents) {
-            pages.add((String)document.get("localId"));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Searched the pages that include " + batch + " in " + requests + " requests");
+            }
         }
 
         return pages;
     }
 
-    protected boolean isComponent(String path) {
-        return path.startsWith(componentsRoot);
+    /**
+     * find the files that include a component, directly or through other components, in the include index
+     */
+    protected List<String> getPagesThatIncludeComponent(IncludeIndex includeIndex, String componentPath)
+        throws IOException {
+        Set<String> pages = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(componentPath);
+
+        while (!pending.isEmpty()) {
+            for (String includingFile : includeIndex.getIncludingFiles(pending.poll())) {
+                if (!includingFile.equals(componentPath) && pages.add(includingFile)) {
+                    pending.add(includingFile);
+                }
+            }
+        }
+
+        return new ArrayList<>(pages);
     }
 
-    protected boolean isBeingUpdated(String path, List<String> createdFiles, List<String> updatedFiles) {
-        return createdFiles.contains(path) || updatedFiles.contains(path);
+    /**
+     * get the include index of the content folder of the target, after recording the includes of the change set
+     *
+     * @return the index, or null if it can't be used and the search engine has to be queried instead
+     */
+    protected IncludeIndex getIncludeIndex(String siteName, PublishingTarget target, List<String> createdFiles,
+                                           List<String> updatedFiles, List<String> deletedFiles) {
+        String root = target.getParameter(FileUploadServlet.CONFIG_ROOT) + "/" +
+                      target.getParameter(FileUploadServlet.CONFIG_CONTENT_FOLDER);
+        if (StringUtils.isNotBlank(siteName)) {
+            root = root.replaceAll(FileUploadServlet.CONFIG_MULTI_TENANCY_VARIABLE, siteName);
+        }
+        File contentFolder = new File(root);
+        IncludeIndex includeIndex = IncludeIndex.getInstance(contentFolder);
+
+        try {
+            // an index filled in only by flattening can be missing files, it's built once before it's relied on
+            synchronized (includeIndex) {
+                if (!includeIndex.isComplete()) {
+                    buildIncludeIndex(includeIndex, contentFolder);
+                    return includeIndex;
+                }
+            }
+            includeIndex.remove(deletedFiles);
+            updateIncludeIndex(includeIndex, contentFolder, createdFiles);
+            updateIncludeIndex(includeIndex, contentFolder, updatedFiles);
+        } catch (IOException e) {
+            logger.error("Unable to update the include index of " + contentFolder + ", searching for the pages " +
+                         "that include the updated components instead", e);
+            return null;
+        }
+
+        return includeIndex;
     }
 
-    protected void addPagesThatIncludeComponentToUpdatedFiles(String indexId, String component,
-                                                              List<String> createdFiles,
-                                                              List<String> updatedFiles) {
-        List<String> pages = getPagesThatIncludeComponent(indexId, component);
-        if (CollectionUtils.isNotEmpty(pages)) {
-            for (String page : pages) {
-                if (!isBeingUpdated(page, createdFiles, updatedFiles)) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Page " + page + " includes updated component " + component + ". Adding it to " +
-                                     "list of updated files.");
+    protected void updateIncludeIndex(IncludeIndex includeIndex, File contentFolder, Collection<String> paths)
+        throws IOException {
+        for (String path : paths) {
+            if (path.endsWith(".xml")) {
+                File file = new File(contentFolder, path);
+                if (file.isFile()) {
+                    includeIndex.setIncludes(path, getIncludes(file));
+                }
+            }
+        }
+    }
+
+    /**
+     * record the includes of all the XML files of the content folder, forget the files no longer there, and mark
+     * the index complete
+     */
+    protected void buildIncludeIndex(final IncludeIndex includeIndex, final File contentFolder) throws IOException {
+        long start = System.currentTimeMillis();
+        final Path folder = contentFolder.toPath();
+        final List<String> paths = new ArrayList<>();
+
+        if (Files.isDirectory(folder)) {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().endsWith(".xml")) {
+                        paths.add("/" + folder.relativize(file).toString().replace(File.separatorChar, '/'));
                     }
+                    return FileVisitResult.CONTINUE;
+                }
 
-                    updatedFiles.add(page);
+            });
+        }
+        Set<String> removed = includeIndex.getLocations();
+        removed.removeAll(paths);
+        includeIndex.remove(removed);
+        updateIncludeIndex(includeIndex, contentFolder, paths);
+        includeIndex.markComplete();
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Built the include index of " + contentFolder + " from " + paths.size() + " XML files in " +
+                        (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Set<String> getIncludes(File file) {
+        Set<String> includes = new LinkedHashSet<>();
+        try {
+            Document document = new SAXReader().read(file);
+            for (Node include : (List<Node>)document.selectNodes(includeElementXPathQuery)) {
+                String includePath = include.getText().trim();
+                if (StringUtils.isNotEmpty(includePath)) {
+                    includes.add(StringUtils.prependIfMissing(includePath, "/"));
                 }
             }
+        } catch (DocumentException e) {
+            logger.warn("Unable to read the includes of " + file, e);
         }
+
+        return includes;
     }
 
-    protected Query createPagesThatIncludeComponentQuery(String componentId) {
-        String queryStatement = String.format(pagesQueryPattern, componentId);
+    protected boolean isComponent(String path) {
+        return path.startsWith(componentsRoot);
+    }
+
+    protected boolean isBeingUpdated(String path, Set<String> filesBeingUpdated) {
+        return filesBeingUpdated.contains(path);
+    }
+
+    protected void addPagesToUpdatedFiles(Set<String> pages, Set<String> filesBeingUpdated,
+                                          List<String> updatedFiles) {
+        for (String page : pages) {
+            if (!isBeingUpdated(page, filesBeingUpdated)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Page " + page + " includes an updated component. Adding it to list of updated " +
+                                 "files.");
+                }
+
+                updatedFiles.add(page);
+                filesBeingUpdated.add(page);
+            }
+        }
+    }
+
+    /**
+     * @param componentIds
+     *          components to find the pages of
+     * @param start
+     *          offset of the first result, 0 when paging with a cursor
+     * @param cursorMark
+     *          cursor to continue from, null to page by offset
+     */
+    protected Query createPagesThatIncludeComponentsQuery(List<String> componentIds, int start, String cursorMark) {
+        StringBuilder queryStatement = new StringBuilder();
+        if (componentIds.size() == 1) {
+            queryStatement.append(String.format(pagesQueryPattern, componentIds.get(0)));
+        } else {
+            for (String componentId : componentIds) {
+                if (queryStatement.length() > 0) {
+                    queryStatement.append(" OR ");
+                }
+                queryStatement.append('(').append(String.format(pagesQueryPattern, componentId)).append(')');
+            }
+        }
+
         SolrQuery query = new SolrQuery();
 
-        query.setQuery(queryStatement);
+        query.setQuery(queryStatement.toString());
         query.setFieldsToReturn("localId");
+        query.setRows(pagesQueryRows);
+        query.setStart(cursorMark != null ? 0 : start);
+        if (StringUtils.isNotEmpty(pagesQuerySort)) {
+            query.addParam("sort", pagesQuerySort);
+        }
+        if (cursorMark != null) {
+            query.addParam(CURSOR_MARK_PARAM, cursorMark);
+        }
 
         return query;
     }
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.CharEncoding;
@@ -40,6 +41,9 @@ public class SearchAttachmentWithExternalMetadataPostProcessor extends AbstractP
     private List<String> referenceXpathList;
     private String multivalueSeparator = ",";
     private String charEncoding = CharEncoding.UTF_8;
+    private int batchSize = BatchingSearchWriter.DEFAULT_BATCH_SIZE;
+    private long commitWindow;
+    private BatchingSearchWriter.CommitWindow sharedCommitWindow;
 
     private String tokenizeAttribute = "tokenized";
     private Map<String, String> tokenizeSubstitutionMap = new HashMap<String, String>(){{
@@ -63,24 +67,26 @@ public class SearchAttachmentWithExternalMetadataPostProcessor extends AbstractP
         List<String> updatedFiles = changeSet.getUpdatedFiles();
         List<String> deletedFiles = changeSet.getDeletedFiles();
 
+        BatchingSearchWriter writer = new BatchingSearchWriter(searchService, batchSize, getSharedCommitWindow());
         try {
             if (CollectionUtils.isNotEmpty(createdFiles)) {
-                processFiles(siteId, root, createdFiles, false);
+                processFiles(writer, siteId, root, createdFiles, false);
             }
             if (CollectionUtils.isNotEmpty(updatedFiles)) {
-                processFiles(siteId, root, updatedFiles, false);
+                processFiles(writer, siteId, root, updatedFiles, false);
             }
             if (CollectionUtils.isNotEmpty(deletedFiles)) {
-                processFiles(siteId, root, deletedFiles, true);
+                processFiles(writer, siteId, root, deletedFiles, true);
             }
+            writer.commit();
         } catch (Exception exc) {
             logger.error("Error: ", exc);
             throw new PublishingException("Failed to complete postprocessing.", exc);
         }
     }
 
-    private void processFiles(String siteId, String root, List<String> fileList, boolean isDelete)
-        throws IOException {
+    private void processFiles(BatchingSearchWriter writer, String siteId, String root, List<String> fileList,
+                              boolean isDelete) throws IOException {
         for (String filePath : fileList) {
             if (logger.isDebugEnabled()) {
                 logger.debug(String.format("Processing file %s for site %s", filePath, siteId));
@@ -125,17 +131,31 @@ public class SearchAttachmentWithExternalMetadataPostProcessor extends AbstractP
             }
 
             if(isDelete) {
-                searchService.delete(siteId, updateIndexPath);
+                writer.delete(siteId, updateIndexPath);
             } else if (searchIndexUpdate) {
                 if (logger.isDebugEnabled()){
                     logger.debug(String.format("Sending search update request for file %s [%s] for site %s",
                         updateIndexPath, filePath, siteId));
                 }
-                searchService.updateDocument(siteId, updateIndexPath, file, externalProperties);
+                writer.updateDocument(siteId, updateIndexPath, file, externalProperties);
             }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (sharedCommitWindow != null) {
+            // a commit already deferred still runs
+            sharedCommitWindow.shutdown();
+            sharedCommitWindow = null;
+        }
+    }
 
-            searchService.commit();
+    private synchronized BatchingSearchWriter.CommitWindow getSharedCommitWindow() {
+        if (commitWindow > 0 && sharedCommitWindow == null) {
+            sharedCommitWindow = new BatchingSearchWriter.CommitWindow(getName(), commitWindow);
         }
+        return sharedCommitWindow;
     }
 
     private Map<String, String> parseMetadataFile(final Document document) {
@@ -338,4 +358,33 @@ public class SearchAttachmentWithExternalMetadataPostProcessor extends AbstractP
         this.tokenizeSubstitutionMap = tokenizeSubstitutionMap;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * set the number of index updates and deletes sent together
+     *
+     * @param batchSize
+     *          number of operations per batch
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getCommitWindow() {
+        return commitWindow;
+    }
+
+    /**
+     * set the milliseconds the index commit of a change set is deferred, so change sets finishing within that time
+     * share a single commit. By default the index is committed when each change set is done.
+     *
+     * @param commitWindow
+     *          milliseconds to defer commits, 0 to commit right away
+     */
+    public void setCommitWindow(final long commitWindow) {
+        this.commitWindow = commitWindow;
+    }
+
 }
@@ -16,11 +16,16 @@
  */
 package org.craftercms.cstudio.publishing.processor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.PublishingException;
 import org.craftercms.search.batch.utils.xml.DocumentProcessor;
-import org.craftercms.search.batch.utils.xml.FlatteningDocumentProcessor;
 
 /**
  * @deprecated replaced by {@link SearchIndexingProcessor}
@@ -28,9 +33,13 @@ import org.craftercms.search.batch.utils.xml.FlatteningDocumentProcessor;
 @Deprecated
 public class SearchUpdateFlattenXmlProcessor extends SearchUpdateProcessor {
 
+    private static final Log logger = LogFactory.getLog(SearchUpdateFlattenXmlProcessor.class);
+
     protected String includeElementXPathQuery;
     protected String disableFlatteningElement;
     private boolean disableNestedPageFlattening;
+    protected long componentCacheSize = CachingFlatteningDocumentProcessor.DEFAULT_CACHE_SIZE;
+    protected boolean includeIndexEnabled;
 
     public String getIncludeElementXPathQuery() {
         return includeElementXPathQuery;
@@ -52,9 +61,27 @@ public class SearchUpdateFlattenXmlProcessor extends SearchUpdateProcessor {
         this.disableNestedPageFlattening = disableNestedPageFlattening;
     }
 
+    /**
+     * set the maximum total size in bytes of the included files kept parsed between pages
+     *
+     * @param componentCacheSize size in bytes, 0 to parse included files every time
+     */
+    public void setComponentCacheSize(long componentCacheSize) {
+        this.componentCacheSize = componentCacheSize;
+    }
+
+    /**
+     * set if the files each page includes are recorded in the {@link IncludeIndex} of its content folder
+     *
+     * @param includeIndexEnabled true to keep the include index up to date
+     */
+    public void setIncludeIndexEnabled(boolean includeIndexEnabled) {
+        this.includeIndexEnabled = includeIndexEnabled;
+    }
+
     @Override
     protected List<DocumentProcessor> createDocumentProcessorChain(List<DocumentProcessor> chain) {
-        FlatteningDocumentProcessor processor = new FlatteningDocumentProcessor();
+        CachingFlatteningDocumentProcessor processor = new CachingFlatteningDocumentProcessor(componentCacheSize);
 
         if (StringUtils.isNotEmpty(includeElementXPathQuery)) {
             processor.setIncludeElementXPathQuery(includeElementXPathQuery);
@@ -64,12 +91,33 @@ public class SearchUpdateFlattenXmlProcessor extends SearchUpdateProcessor {
         }
 
         processor.setDisableNestedPageFlattening(disableNestedPageFlattening);
+        processor.setCharEncoding(charEncoding);
+        processor.setIncludeIndexEnabled(includeIndexEnabled);
 
         chain.add(processor);
 
         return super.createDocumentProcessorChain(chain);
     }
 
+    @Override
+    protected void update(BatchingSearchWriter writer, String siteId, String root, List<String> fileNames,
+                          boolean delete) throws PublishingException {
+        if (delete && includeIndexEnabled) {
+            List<String> xmlFiles = new ArrayList<String>();
+            for (String fileName : fileNames) {
+                if (fileName.endsWith(".xml")) {
+                    xmlFiles.add(fileName);
+                }
+            }
+            try {
+                IncludeIndex.getInstance(new File(root)).remove(xmlFiles);
+            } catch (IOException e) {
+                logger.warn("Unable to remove deleted files from the include index of " + root, e);
+            }
+        }
+        super.update(writer, siteId, root, fileNames, delete);
+    }
+
     @Override
     public String getName() {
         return SearchUpdateFlattenXmlProcessor.class.getSimpleName();
@@ -17,10 +17,19 @@
 package org.craftercms.cstudio.publishing.processor;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
@@ -52,11 +61,22 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
 
     private static final Log logger = LogFactory.getLog(SearchUpdateProcessor.class);
 
+    /**
+     * files prepared ahead of the one being submitted, per preparation thread
+     */
+    private static final int PREPARATION_AHEAD = 4;
+
     protected SearchService searchService;
     protected String siteName;
     protected Map<String, String> fieldMappings;
-    private String charEncoding = CharEncoding.UTF_8;
+    protected String charEncoding = CharEncoding.UTF_8;
     protected DocumentProcessor documentProcessor;
+    protected int batchSize = BatchingSearchWriter.DEFAULT_BATCH_SIZE;
+    protected long commitWindow;
+    protected BatchingSearchWriter.CommitWindow sharedCommitWindow;
+    protected int parallelism = 1;
+    private ForkJoinPool preparationPool;
+    private final AtomicInteger threadCount = new AtomicInteger();
 
     @Required
     public void setSearchService(SearchService searchService) {
@@ -96,10 +116,47 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
         // Ignore, now this functionality is done by the server
     }
 
+    /**
+     * set the processor chain run on each XML file instead of the default one. It must be thread safe if
+     * {@link #setParallelism(int)} is more than 1.
+     *
+     * @param documentProcessor
+     */
     public void setDocumentProcessor(DocumentProcessor documentProcessor) {
         this.documentProcessor = documentProcessor;
     }
 
+    /**
+     * set the number of index updates and deletes sent together
+     *
+     * @param batchSize number of operations per batch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * set the milliseconds the index commit of a change set is deferred, so change sets finishing within that time
+     * share a single commit. By default the index is committed when each change set is done.
+     *
+     * @param commitWindow milliseconds to defer commits, 0 to commit right away
+     */
+    public void setCommitWindow(long commitWindow) {
+        this.commitWindow = commitWindow;
+    }
+
+    /**
+     * set the number of threads that read and process the XML files of a change set. With more than 1 the files are
+     * prepared on a fork/join pool while the calling thread submits them, in order, to the search service, so the
+     * document processor chain is called from several threads at once. The default chains are thread safe, a chain
+     * set with {@link #setDocumentProcessor(DocumentProcessor)} must be too.
+     *
+     * @param parallelism number of preparation threads, 1 to prepare the files on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
     @PostConstruct
     public void init() {
         if (documentProcessor == null) {
@@ -107,6 +164,22 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
 
             documentProcessor = new DocumentProcessorChain(chain);
         }
+        if (commitWindow > 0) {
+            sharedCommitWindow = new BatchingSearchWriter.CommitWindow(getName(), commitWindow);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (sharedCommitWindow != null) {
+            // a commit already deferred still runs
+            sharedCommitWindow.shutdown();
+        }
+        synchronized (this) {
+            if (preparationPool != null) {
+                preparationPool.shutdown();
+            }
+        }
     }
 
     @Override
@@ -126,17 +199,23 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
         List<String> updatedFiles = changeSet.getUpdatedFiles();
         List<String> deletedFiles = changeSet.getDeletedFiles();
 
+        BatchingSearchWriter writer = new BatchingSearchWriter(searchService, batchSize, sharedCommitWindow);
+
         if (CollectionUtils.isNotEmpty(createdFiles)) {
-            update(siteId, root, createdFiles, false);
+            update(writer, siteId, root, createdFiles, false);
         }
         if (CollectionUtils.isNotEmpty(updatedFiles)) {
-            update(siteId, root, updatedFiles, false);
+            update(writer, siteId, root, updatedFiles, false);
         }
         if (CollectionUtils.isNotEmpty(deletedFiles)) {
-            update(siteId, root, deletedFiles, true);
+            update(writer, siteId, root, deletedFiles, true);
         }
 
-        searchService.commit();
+        try {
+            writer.commit();
+        } catch (Exception e) {
+            throw new PublishingException(e);
+        }
     }
 
     protected List<DocumentProcessor> createDocumentProcessorChain(List<DocumentProcessor> chain) {
@@ -150,25 +229,29 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
         return chain;
     }
 
-    protected void update(String siteId, String root, List<String> fileNames,
+    protected void update(BatchingSearchWriter writer, String siteId, String root, List<String> fileNames,
                           boolean delete) throws PublishingException {
+        if (!delete && parallelism > 1) {
+            updateInParallel(writer, siteId, root, fileNames);
+            return;
+        }
         for (String fileName : fileNames) {
             if (fileName.endsWith(".xml")) {
                 try {
                     if (delete) {
-                        searchService.delete(siteId, fileName);
+                        writer.delete(siteId, fileName);
 
                         if (logger.isDebugEnabled()) {
-                            logger.debug(siteId + ":" + fileName + " deleted from search index");
+                            logger.debug(siteId + ":" + fileName + " queued for deletion from search index");
                         }
                     } else {
                         try {
                             String xml = processXml(root, fileName);
 
-                            searchService.update(siteId, fileName, xml, true);
+                            writer.update(siteId, fileName, xml, true);
 
                             if (logger.isDebugEnabled()) {
-                                logger.debug(siteId + ":" + fileName + " added to search index");
+                                logger.debug(siteId + ":" + fileName + " queued for addition to search index");
                             }
                         } catch (DocumentException e) {
                             logger.warn("Cannot process XML file " + siteId + ":" + fileName + ". Continuing index " +
@@ -182,6 +265,62 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
         }
     }
 
+    /**
+     * prepare the XML files on the preparation pool, keeping a bounded number of them ahead, and submit them in the
+     * order of the change set as they're ready
+     */
+    protected void updateInParallel(BatchingSearchWriter writer, String siteId, String root,
+                                    List<String> fileNames) throws PublishingException {
+        ForkJoinPool pool = getPreparationPool();
+        Deque<Preparation> ahead = new ArrayDeque<Preparation>();
+        Iterator<String> files = fileNames.iterator();
+        try {
+            while (files.hasNext() || !ahead.isEmpty()) {
+                while (files.hasNext() && ahead.size() < parallelism * PREPARATION_AHEAD) {
+                    String fileName = files.next();
+                    if (fileName.endsWith(".xml")) {
+                        Preparation preparation = new Preparation(siteId, root, fileName);
+                        pool.execute(preparation);
+                        ahead.add(preparation);
+                    }
+                }
+                Preparation preparation = ahead.poll();
+                if (preparation == null) {
+                    continue;
+                }
+                String xml = preparation.join();
+                if (xml != null) {
+                    writer.update(siteId, preparation.fileName, xml, true);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(siteId + ":" + preparation.fileName + " queued for addition to search index");
+                    }
+                }
+            }
+        } catch (Exception e) {
+            for (Preparation preparation : ahead) {
+                preparation.cancel(false);
+            }
+            throw new PublishingException(e);
+        }
+    }
+
+    private synchronized ForkJoinPool getPreparationPool() {
+        if (preparationPool == null) {
+            preparationPool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(getName() + "-prepare-" + threadCount.incrementAndGet());
+                    return thread;
+                }
+
+            }, null, false);
+        }
+        return preparationPool;
+    }
+
     protected String processXml(String root, String fileName) throws DocumentException {
         File file = new File(root + fileName);
 
@@ -200,5 +339,33 @@ public class SearchUpdateProcessor extends AbstractPublishingProcessor {
         return documentProcessor.process(document, file, root);
     }
 
-}
+    /**
+     * reads and processes an XML file, returns null if it can't be processed
+     */
+    private class Preparation extends RecursiveTask<String> {
+
+        private static final long serialVersionUID = -6230461785237429571L;
 
+        private final String siteId;
+        private final String root;
+        private final String fileName;
+
+        private Preparation(String siteId, String root, String fileName) {
+            this.siteId = siteId;
+            this.root = root;
+            this.fileName = fileName;
+        }
+
+        @Override
+        protected String compute() {
+            try {
+                return processXml(root, fileName);
+            } catch (DocumentException e) {
+                logger.warn("Cannot process XML file " + siteId + ":" + fileName + ". Continuing index update...", e);
+                return null;
+            }
+        }
+
+    }
+
+}
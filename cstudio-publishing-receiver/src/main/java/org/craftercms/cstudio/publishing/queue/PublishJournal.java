@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.queue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+
+/**
+ * Append-only journal of the change sets of a target that haven't been fully post processed. A change set is
+ * recorded before it's committed to the target, each post processor that finishes is recorded after it, and a final
+ * record marks the change set as done. The journal is split in segments that are deleted once every change set recorded in
+ * them is done, so it only grows while post processing falls behind.
+ *
+ * <p>Only the first record of a change set waits for the disk: concurrent publishes share a single fsync, and the
+ * progress records are left to the OS since losing them only means a post processor runs again after a crash.</p>
+ */
+public class PublishJournal {
+
+    private static final Log LOGGER = LogFactory.getLog(PublishJournal.class);
+
+    public static final String SEGMENT_EXTENSION = ".journal";
+
+    private static final byte RECORD_BEGIN = 1;
+    private static final byte RECORD_PROCESSED = 2;
+    private static final byte RECORD_END = 3;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final File folder;
+    private final long maxSegmentSize;
+
+    private FileChannel channel;
+    private long segment = -1;
+    private long segmentSize;
+    /** segment -> number of unfinished change sets that began in it **/
+    private final TreeMap<Long, Integer> openPublishes = new TreeMap<Long, Integer>();
+    /** publish id -> segment it began in **/
+    private final Map<String, Long> publishSegments = new HashMap<String, Long>();
+
+    /** total bytes appended and synced since the journal was opened **/
+    private long appended;
+    private long synced;
+    private boolean syncing;
+
+    /**
+     * @param folder
+     *          folder holding the segments of the journal
+     * @param maxSegmentSize
+     *          size in bytes after which a new segment is started
+     */
+    public PublishJournal(File folder, long maxSegmentSize) {
+        this.folder = folder;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * read the segments left by a previous run. Must be called before anything is appended.
+     *
+     * @return the change sets that weren't fully post processed, in the order they were recorded
+     * @throws IOException
+     */
+    public synchronized List<QueuedPublish> recover() throws IOException {
+        Map<String, QueuedPublish> pending = new LinkedHashMap<String, QueuedPublish>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            TreeMap<Long, File> segments = new TreeMap<Long, File>();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_EXTENSION)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())),
+                                     file);
+                    } catch (NumberFormatException e) {
+                        LOGGER.warn("Ignoring unknown journal file " + file);
+                    }
+                }
+            }
+            for (Map.Entry<Long, File> entry : segments.entrySet()) {
+                openPublishes.put(entry.getKey(), 0);
+                readSegment(entry.getKey(), entry.getValue(), pending);
+                segment = entry.getKey();
+            }
+        }
+        deleteFinishedSegments();
+        return new ArrayList<QueuedPublish>(pending.values());
+    }
+
+    /**
+     * record a change set about to be post processed, returning once the record is on disk
+     *
+     * @param publish
+     * @throws IOException
+     */
+    public void begin(QueuedPublish publish) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PublishedChangeSet changeSet = publish.getChangeSet();
+        out.writeByte(RECORD_BEGIN);
+        writeString(out, publish.getId());
+        writeString(out, publish.getTargetName());
+        out.writeLong(publish.getSubmittedTime());
+        out.writeInt(publish.getParameters().size());
+        for (Map.Entry<String, String> parameter : publish.getParameters().entrySet()) {
+            writeString(out, parameter.getKey());
+            writeString(out, parameter.getValue());
+        }
+        writeList(out, changeSet.getCreatedFiles());
+        writeList(out, changeSet.getUpdatedFiles());
+        writeList(out, changeSet.getDeletedFiles());
+        out.flush();
+
+        long position;
+        synchronized (this) {
+            position = append(bytes.toByteArray());
+            publishSegments.put(publish.getId(), segment);
+            openPublishes.put(segment, openPublishes.get(segment) + 1);
+        }
+        sync(position);
+    }
+
+    /**
+     * record that a post processor finished with a change set
+     *
+     * @param publish
+     * @param processorKey
+     * @throws IOException
+     */
+    public synchronized void processed(QueuedPublish publish, String processorKey) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_PROCESSED);
+        writeString(out, publish.getId());
+        writeString(out, processorKey);
+        out.flush();
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * record that a change set went through all the post processors
+     *
+     * @param publish
+     * @throws IOException
+     */
+    public synchronized void end(QueuedPublish publish) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_END);
+        writeString(out, publish.getId());
+        out.flush();
+        append(bytes.toByteArray());
+        release(publish.getId());
+        deleteFinishedSegments();
+    }
+
+    private long append(byte[] body) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + body.length;
+        if (channel == null || (segmentSize > 0 && segmentSize + recordSize > maxSegmentSize)) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        segmentSize += recordSize;
+        appended += recordSize;
+        return appended;
+    }
+
+    private void roll() throws IOException {
+        if (channel != null) {
+            // a sync of the current segment may be running outside the lock
+            while (syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rolling the journal in " + folder);
+                }
+            }
+            channel.force(false);
+            channel.close();
+            synced = appended;
+        }
+        segment++;
+        segmentSize = 0;
+        Files.createDirectories(folder.toPath());
+        channel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE_NEW,
+                                   StandardOpenOption.WRITE);
+        openPublishes.put(segment, 0);
+        deleteFinishedSegments();
+    }
+
+    /**
+     * wait until everything appended up to the given position is on disk. The first caller to find the journal
+     * unsynced forces it for everyone appended so far, later callers wait for that sync.
+     */
+    private void sync(long position) throws IOException {
+        FileChannel syncChannel;
+        long syncPosition;
+        synchronized (this) {
+            while (syncing && synced < position) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while syncing the journal in " + folder);
+                }
+            }
+            if (synced >= position) {
+                return;
+            }
+            syncing = true;
+            syncChannel = channel;
+            syncPosition = appended;
+        }
+        boolean success = false;
+        try {
+            syncChannel.force(false);
+            success = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (success) {
+                    synced = Math.max(synced, syncPosition);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void release(String id) {
+        Long publishSegment = publishSegments.remove(id);
+        if (publishSegment != null) {
+            Integer count = openPublishes.get(publishSegment);
+            if (count != null) {
+                openPublishes.put(publishSegment, count - 1);
+            }
+        }
+    }
+
+    /**
+     * delete the oldest segments once all their change sets are done. Segments are only deleted in order so the
+     * progress records of an unfinished change set are never lost.
+     */
+    private void deleteFinishedSegments() {
+        while (!openPublishes.isEmpty()) {
+            Map.Entry<Long, Integer> oldest = openPublishes.firstEntry();
+            if (oldest.getValue() > 0 || (channel != null && oldest.getKey() == segment)) {
+                break;
+            }
+            openPublishes.pollFirstEntry();
+            File segmentFile = getSegmentFile(oldest.getKey());
+            if (!segmentFile.delete() && segmentFile.exists()) {
+                LOGGER.warn("Unable to delete journal segment " + segmentFile);
+            }
+        }
+    }
+
+    private void readSegment(long segment, File file, Map<String, QueuedPublish> pending) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    LOGGER.warn("Ignoring the rest of journal segment " + file + ": invalid record length " + length);
+                    return;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.warn("Ignoring the rest of journal segment " + file + ": corrupted record");
+                    return;
+                }
+                readRecord(segment, body, pending);
+            }
+        } catch (EOFException e) {
+            // the last record was being written when the receiver stopped, it was never acknowledged
+            LOGGER.warn("Ignoring incomplete record at the end of journal segment " + file);
+        }
+    }
+
+    private void readRecord(long segment, byte[] body, Map<String, QueuedPublish> pending) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String id = readString(in);
+        switch (type) {
+            case RECORD_BEGIN:
+                String targetName = readString(in);
+                long submittedTime = in.readLong();
+                int parameterCount = in.readInt();
+                Map<String, String> parameters = new LinkedHashMap<String, String>(parameterCount);
+                for (int i = 0; i < parameterCount; i++) {
+                    parameters.put(readString(in), readString(in));
+                }
+                PublishedChangeSet changeSet = new PublishedChangeSet(readList(in), readList(in), readList(in));
+                pending.put(id, new QueuedPublish(id, targetName, parameters, changeSet, submittedTime));
+                publishSegments.put(id, segment);
+                openPublishes.put(segment, openPublishes.get(segment) + 1);
+                break;
+            case RECORD_PROCESSED:
+                QueuedPublish publish = pending.get(id);
+                if (publish != null) {
+                    publish.processorCompleted(readString(in));
+                }
+                break;
+            case RECORD_END:
+                pending.remove(id);
+                release(id);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(folder, String.format("%016d", segment) + SEGMENT_EXTENSION);
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeList(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(values.size());
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+}
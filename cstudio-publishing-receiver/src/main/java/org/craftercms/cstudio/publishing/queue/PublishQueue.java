@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+import org.craftercms.cstudio.publishing.exception.PublishingException;
+import org.craftercms.cstudio.publishing.processor.PostProcessorChain;
+import org.craftercms.cstudio.publishing.servlet.FileUploadServlet;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+import org.craftercms.cstudio.publishing.target.TargetManager;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Durable, per-target queue of published change sets waiting for post processing. Change sets are recorded in the
+ * {@link PublishJournal} of their target before they are committed, along with each post processor that finishes,
+ * so change sets that weren't fully post processed when the receiver stopped are queued again at startup and only go
+ * through the post processors that hadn't run yet. Change sets of targets that post process synchronously are only
+ * journaled with the journal parameter, as they're post processed before the publish is acknowledged.
+ *
+ * <p>Targets with the asyncPostProcessing parameter hand their change sets to this queue so the publish request can
+ * be acknowledged as soon as the files are written, other targets post process on the request thread. With the
+ * coalescingWindow parameter, publishes of the same site submitted within that many milliseconds of each other are
+ * merged and go through the post processors once.</p>
+ */
+public class PublishQueue implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Log LOGGER = LogFactory.getLog(PublishQueue.class);
+
+    public static final String CONFIG_ASYNC_POST_PROCESSING = "asyncPostProcessing";
+    public static final String CONFIG_POST_PROCESSING_THREADS = "postProcessingThreads";
+    public static final String CONFIG_COALESCING_WINDOW = "coalescingWindow";
+    public static final String CONFIG_JOURNAL = "journal";
+
+    protected TargetManager targetManager;
+    protected PostProcessorChain postProcessorChain;
+    protected String folder;
+    protected long maxSegmentSize = 4 * 1024 * 1024;
+    protected int maxFinishedPublishes = 1000;
+    protected int maxCoalescedPublishes = 500;
+
+    private final Map<String, TargetQueue> queues = new HashMap<String, TargetQueue>();
+    private final Map<String, PublishJournal> journals = new HashMap<String, PublishJournal>();
+    private final Map<String, QueuedPublish> publishes = new ConcurrentHashMap<String, QueuedPublish>();
+    private final Deque<String> finishedIds = new ArrayDeque<String>();
+    private boolean recovered = false;
+
+    /**
+     * check if the change sets of a target should be post processed asynchronously
+     *
+     * @param target
+     * @return
+     */
+    public boolean isAsync(PublishingTarget target) {
+        return target.getBooleanParameter(CONFIG_ASYNC_POST_PROCESSING, false);
+    }
+
+    /**
+     * check if the change sets of a target are recorded in its journal, which they always are when post processed
+     * asynchronously
+     *
+     * @param target
+     * @return
+     */
+    public boolean isJournaled(PublishingTarget target) {
+        return isAsync(target) || target.getBooleanParameter(CONFIG_JOURNAL, false);
+    }
+
+    /**
+     * create the publish of a change set about to be committed, recording it in the journal first so it's post
+     * processed on restart if the receiver stops before it is. It's then either submitted, processed or cancelled.
+     *
+     * @param target
+     * @param parameters
+     *          the publish request parameters, the password is not kept
+     * @param changeSet
+     *          the change set, not changed anymore
+     * @param result
+     *          result of the publish, updated as it's post processed
+     * @param journaled
+     *          if the change set is recorded in the journal
+     * @return the publish
+     * @throws IOException
+     *          if the change set couldn't be recorded
+     */
+    public QueuedPublish prepare(PublishingTarget target, Map<String, String> parameters, PublishedChangeSet changeSet,
+                                 PublishResult result, boolean journaled) throws IOException {
+        Map<String, String> queuedParameters = new HashMap<String, String>(parameters);
+        queuedParameters.remove(FileUploadServlet.PARAM_PASSWORD);
+
+        QueuedPublish publish = new QueuedPublish(UUID.randomUUID().toString(), target.getName(), queuedParameters,
+                                                  changeSet, System.currentTimeMillis(), result);
+        if (journaled) {
+            getJournal(target).begin(publish);
+            publish.setJournaled(true);
+        }
+        return publish;
+    }
+
+    /**
+     * drop a prepared publish whose change set couldn't be committed
+     *
+     * @param target
+     * @param publish
+     */
+    public void cancel(PublishingTarget target, QueuedPublish publish) {
+        if (publish.isJournaled()) {
+            try {
+                getJournal(target).end(publish);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to record publish " + publish.getId() + " as cancelled", e);
+            }
+        }
+    }
+
+    /**
+     * record a change set and queue it for post processing
+     *
+     * @param target
+     * @param parameters
+     *          the publish request parameters, the password is not kept
+     * @param changeSet
+     * @param result
+     *          result of the publish, updated as it's post processed
+     * @return the queued publish, used to track its progress
+     * @throws IOException
+     *          if the change set couldn't be recorded
+     */
+    public QueuedPublish submit(PublishingTarget target, Map<String, String> parameters,
+                                PublishedChangeSet changeSet, PublishResult result) throws IOException {
+        QueuedPublish publish = prepare(target, parameters, changeSet, result, true);
+        submit(target, publish);
+        return publish;
+    }
+
+    /**
+     * queue a prepared publish for post processing
+     *
+     * @param target
+     * @param publish
+     */
+    public void submit(PublishingTarget target, QueuedPublish publish) {
+        PublishedChangeSet changeSet = publish.getChangeSet();
+        enqueue(target, publish);
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Queued publish " + publish.getId() + " for " + target.getName() + ": " + changeSet);
+        }
+    }
+
+    /**
+     * record a change set, if the target is journaled, and post process it on the calling thread
+     *
+     * @param target
+     * @param parameters
+     *          the publish request parameters, the password is not kept
+     * @param changeSet
+     * @param result
+     *          result of the publish, updated as it's post processed
+     * @return the processed publish
+     * @throws IOException
+     *          if the change set couldn't be recorded
+     */
+    public QueuedPublish processNow(PublishingTarget target, Map<String, String> parameters,
+                                    PublishedChangeSet changeSet, PublishResult result) throws IOException {
+        QueuedPublish publish = prepare(target, parameters, changeSet, result, isJournaled(target));
+        processNow(target, publish);
+        return publish;
+    }
+
+    /**
+     * post process a prepared publish on the calling thread
+     *
+     * @param target
+     * @param publish
+     */
+    public void processNow(PublishingTarget target, QueuedPublish publish) {
+        publishes.put(publish.getId(), publish);
+        process(publish, target);
+    }
+
+    /**
+     * get a publish that is queued, being processed or recently finished
+     *
+     * @param id
+     * @return the publish, or null if unknown
+     */
+    public QueuedPublish getPublish(String id) {
+        return publishes.get(id);
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        synchronized (this) {
+            if (recovered) {
+                return;
+            }
+            recovered = true;
+        }
+        recover();
+    }
+
+    /**
+     * queue again all the change sets that weren't post processed before the last shutdown
+     */
+    protected void recover() {
+        File[] targetFolders = new File(folder).listFiles();
+        if (targetFolders == null) {
+            return;
+        }
+        for (File targetFolder : targetFolders) {
+            if (!targetFolder.isDirectory()) {
+                continue;
+            }
+            PublishingTarget target = targetManager.getTarget(targetFolder.getName());
+            if (target == null) {
+                LOGGER.warn("Unable to recover queued publishes of " + targetFolder.getName() + ": no such target");
+                continue;
+            }
+            try {
+                getJournal(target);
+            } catch (IOException e) {
+                LOGGER.error("Unable to recover queued publishes of " + target.getName(), e);
+            }
+        }
+    }
+
+    protected void enqueue(PublishingTarget target, QueuedPublish publish) {
+        publishes.put(publish.getId(), publish);
+        TargetQueue queue;
+        synchronized (queues) {
+            queue = queues.get(target.getName());
+            if (queue == null) {
+                queue = new TargetQueue(target);
+                queues.put(target.getName(), queue);
+            }
+        }
+        queue.add(publish);
+    }
+
+    /**
+     * get the journal of a target, opening it and queueing the change sets it still holds on first use
+     *
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    protected PublishJournal getJournal(PublishingTarget target) throws IOException {
+        synchronized (journals) {
+            PublishJournal journal = journals.get(target.getName());
+            if (journal == null) {
+                journal = new PublishJournal(new File(folder, target.getName()), maxSegmentSize);
+                for (QueuedPublish publish : journal.recover()) {
+                    LOGGER.info("Recovered publish " + publish.getId() + " for " + target.getName());
+                    publish.setJournaled(true);
+                    enqueue(target, publish);
+                }
+                journals.put(target.getName(), journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * run a queued change set through the post processors of its target
+     *
+     * @param publish
+     * @param target
+     */
+    protected void process(QueuedPublish publish, PublishingTarget target) {
+        process(Collections.singletonList(publish), target);
+    }
+
+    /**
+     * run consecutive change sets of the same site through the post processors of their target as a single change
+     * set
+     *
+     * @param batch
+     *          publishes in the order they were submitted
+     * @param target
+     */
+    protected void process(final List<QueuedPublish> batch, final PublishingTarget target) {
+        QueuedPublish last = batch.get(batch.size() - 1);
+        PublishedChangeSet changeSet;
+        if (batch.size() == 1) {
+            changeSet = last.getChangeSet();
+        } else {
+            List<PublishedChangeSet> changeSets = new ArrayList<PublishedChangeSet>(batch.size());
+            for (QueuedPublish publish : batch) {
+                changeSets.add(publish.getChangeSet());
+            }
+            changeSet = PublishedChangeSet.merge(changeSets);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Coalesced " + batch.size() + " publishes for " + target.getName() + " into " +
+                            changeSet);
+            }
+        }
+
+        for (QueuedPublish publish : batch) {
+            publish.started();
+        }
+        String error = null;
+        PublishJournal journal = null;
+        try {
+            journal = getJournal(target);
+            postProcessorChain.process(changeSet, last.getParameters(), target,
+                                       new PostProcessorChain.ProgressListener() {
+
+                @Override
+                public boolean isCompleted(String processorKey) {
+                    for (QueuedPublish publish : batch) {
+                        if (!publish.isProcessorCompleted(processorKey)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void processorCompleted(String processorKey) {
+                    for (QueuedPublish publish : batch) {
+                        publish.processorCompleted(processorKey);
+                        if (!publish.isJournaled()) {
+                            continue;
+                        }
+                        try {
+                            getJournal(target).processed(publish, processorKey);
+                        } catch (IOException e) {
+                            LOGGER.warn("Unable to record " + processorKey + " as done for publish " +
+                                        publish.getId(), e);
+                        }
+                    }
+                }
+
+                @Override
+                public void processorFinished(String processorKey, long time, Throwable error) {
+                    for (QueuedPublish publish : batch) {
+                        publish.getResult().processorFinished(processorKey, time, error);
+                    }
+                }
+
+            });
+        } catch (PublishingException | IOException | RuntimeException e) {
+            LOGGER.error("Error while post processing publish " + last.getId() + " for " + target.getName(), e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        } finally {
+            for (QueuedPublish publish : batch) {
+                // a failed post processor isn't retried on restart, same as a synchronous publish
+                if (journal != null && publish.isJournaled()) {
+                    try {
+                        journal.end(publish);
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to record publish " + publish.getId() + " as done", e);
+                    }
+                }
+                publish.finished(error);
+                retire(publish);
+            }
+        }
+    }
+
+    private void retire(QueuedPublish publish) {
+        synchronized (finishedIds) {
+            finishedIds.addLast(publish.getId());
+            while (finishedIds.size() > maxFinishedPublishes) {
+                publishes.remove(finishedIds.removeFirst());
+            }
+        }
+    }
+
+    @Required
+    public void setTargetManager(TargetManager targetManager) {
+        this.targetManager = targetManager;
+    }
+
+    @Required
+    public void setPostProcessorChain(PostProcessorChain postProcessorChain) {
+        this.postProcessorChain = postProcessorChain;
+    }
+
+    @Required
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
+
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    public void setMaxFinishedPublishes(int maxFinishedPublishes) {
+        this.maxFinishedPublishes = maxFinishedPublishes;
+    }
+
+    public void setMaxCoalescedPublishes(int maxCoalescedPublishes) {
+        this.maxCoalescedPublishes = maxCoalescedPublishes;
+    }
+
+    /**
+     * pending change sets of a target and the workers that drain them. Each site is assigned to one lane, drained by
+     * a single worker, so the change sets of a site are post processed one at a time and in order, while with
+     * postProcessingThreads over 1 those of different sites can be post processed at the same time.
+     */
+    private class TargetQueue {
+
+        private final PublishingTarget target;
+        private final Lane[] lanes;
+
+        TargetQueue(PublishingTarget target) {
+            this.target = target;
+
+            int threads = Math.max(1, target.getIntParameter(CONFIG_POST_PROCESSING_THREADS, 1));
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(target.getName() +
+                                                                                   "-post-processor-");
+            threadFactory.setDaemon(true);
+            lanes = new Lane[threads];
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = new Lane();
+                threadFactory.newThread(lanes[i]).start();
+            }
+        }
+
+        void add(QueuedPublish publish) {
+            String site = StringUtils.defaultString(publish.getParameters().get(FileUploadServlet.PARAM_SITE));
+            lanes[(site.hashCode() & Integer.MAX_VALUE) % lanes.length].pending.add(publish);
+        }
+
+        /**
+         * pending change sets of the sites assigned to a worker
+         */
+        private class Lane implements Runnable {
+
+            private final BlockingDeque<QueuedPublish> pending = new LinkedBlockingDeque<QueuedPublish>();
+
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        QueuedPublish publish = pending.take();
+                        long window = target.getIntParameter(CONFIG_COALESCING_WINDOW, 0);
+                        if (window > 0) {
+                            process(collect(publish, window), target);
+                        } else {
+                            process(publish, target);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            /**
+             * collect the publishes of the same site that follow the given one and are submitted within the window
+             * after it. Publishes already waiting in the lane are collected without waiting.
+             */
+            private List<QueuedPublish> collect(QueuedPublish first, long window) throws InterruptedException {
+                List<QueuedPublish> batch = new ArrayList<QueuedPublish>();
+                batch.add(first);
+                String site = first.getParameters().get(FileUploadServlet.PARAM_SITE);
+                long deadline = first.getSubmittedTime() + window;
+                while (batch.size() < maxCoalescedPublishes) {
+                    long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                    QueuedPublish next = pending.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (!StringUtils.equals(site, next.getParameters().get(FileUploadServlet.PARAM_SITE))) {
+                        // keep publishes of different sites sharing the lane in order
+                        pending.putFirst(next);
+                        break;
+                    }
+                    batch.add(next);
+                }
+                return batch;
+            }
+
+        }
+
+    }
+
+}
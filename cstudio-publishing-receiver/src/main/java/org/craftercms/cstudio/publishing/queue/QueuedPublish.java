@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.queue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+
+/**
+ * A published change set waiting for, or going through, post processing.
+ */
+public class QueuedPublish {
+
+    public enum Status {
+        QUEUED, PROCESSING, COMPLETED, FAILED
+    }
+
+    private final String id;
+    private final String targetName;
+    private final Map<String, String> parameters;
+    private final PublishedChangeSet changeSet;
+    private final long submittedTime;
+    private final Set<String> completedProcessors = new HashSet<String>();
+    private final PublishResult result;
+    private volatile boolean journaled;
+
+    private Status status = Status.QUEUED;
+    private long startedTime;
+    private long finishedTime;
+    private String error;
+
+    public QueuedPublish(String id, String targetName, Map<String, String> parameters, PublishedChangeSet changeSet,
+                         long submittedTime) {
+        this(id, targetName, parameters, changeSet, submittedTime, new PublishResult(targetName));
+    }
+
+    /**
+     * @param id
+     * @param targetName
+     * @param parameters
+     * @param changeSet
+     * @param submittedTime
+     * @param result
+     *          result of the publish so far, updated as it's post processed
+     */
+    public QueuedPublish(String id, String targetName, Map<String, String> parameters, PublishedChangeSet changeSet,
+                         long submittedTime, PublishResult result) {
+        this.id = id;
+        this.targetName = targetName;
+        this.parameters = parameters;
+        this.changeSet = changeSet;
+        this.submittedTime = submittedTime;
+        this.result = result;
+        result.queued(id);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public PublishedChangeSet getChangeSet() {
+        return changeSet;
+    }
+
+    public long getSubmittedTime() {
+        return submittedTime;
+    }
+
+    public PublishResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return if the change set is recorded in the journal of its target
+     */
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    public synchronized long getStartedTime() {
+        return startedTime;
+    }
+
+    public synchronized long getFinishedTime() {
+        return finishedTime;
+    }
+
+    public synchronized String getError() {
+        return error;
+    }
+
+    /**
+     * check if a post processor already ran for this change set, before a restart
+     *
+     * @param processorKey
+     * @return
+     */
+    public synchronized boolean isProcessorCompleted(String processorKey) {
+        return completedProcessors.contains(processorKey);
+    }
+
+    synchronized void processorCompleted(String processorKey) {
+        completedProcessors.add(processorKey);
+    }
+
+    public synchronized boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    synchronized void started() {
+        status = Status.PROCESSING;
+        startedTime = System.currentTimeMillis();
+        result.processingStarted(startedTime - submittedTime);
+    }
+
+    synchronized void finished(String error) {
+        this.status = error == null ? Status.COMPLETED : Status.FAILED;
+        this.error = error;
+        this.finishedTime = System.currentTimeMillis();
+        result.processingFinished(finishedTime - startedTime, error);
+        notifyAll();
+    }
+
+    /**
+     * wait until post processing has finished
+     *
+     * @param timeout
+     *          max time to wait in milliseconds
+     * @return true if post processing finished
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitCompletion(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isFinished()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+}
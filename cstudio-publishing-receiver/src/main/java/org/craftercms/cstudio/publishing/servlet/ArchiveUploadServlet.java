@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+import org.craftercms.cstudio.publishing.archive.ArchiveReader;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.target.PublishTransaction;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * <p>Bulk publish of a whole tar, tar.gz or zip archive sent as the request body, meant for initial site loads and
+ * full republishes. The publish parameters (password, target, siteId and optionally deletedFiles) go in the query
+ * string, and the format in the format parameter or the Content-Type of the request.</p>
+ * <p>Files under content/ in the archive are written to the content folder of the target, at the same path they have
+ * in the archive. Files under metadata/ are written as the metadata of the content at the same path, the way
+ * metadataFile parts are. The deleted-files entry, if any, lists the paths to delete, one per line. Entries are
+ * extracted one at a time as the archive is read, and the whole archive results in a single change set.</p>
+ */
+public class ArchiveUploadServlet extends FileUploadServlet {
+
+    private static final long serialVersionUID = 5119460365893043247L;
+
+    private static final Log LOGGER = LogFactory.getLog(ArchiveUploadServlet.class);
+
+    public static final String PARAM_FORMAT = "format";
+
+    public static final String CONTENT_ENTRY_PREFIX = "content/";
+    public static final String METADATA_ENTRY_PREFIX = "metadata/";
+    public static final String DELETED_FILES_ENTRY = "deleted-files";
+
+    private static final String CONTENT_FIELD = "contentFile";
+    private static final String METADATA_FIELD = "metadataFile";
+
+    private static final Map<String, String> FORMATS_BY_CONTENT_TYPE = new HashMap<String, String>();
+
+    static {
+        FORMATS_BY_CONTENT_TYPE.put("application/x-tar", ArchiveReader.FORMAT_TAR);
+        FORMATS_BY_CONTENT_TYPE.put("application/gzip", ArchiveReader.FORMAT_TGZ);
+        FORMATS_BY_CONTENT_TYPE.put("application/x-gzip", ArchiveReader.FORMAT_TGZ);
+        FORMATS_BY_CONTENT_TYPE.put("application/x-compressed-tar", ArchiveReader.FORMAT_TGZ);
+        FORMATS_BY_CONTENT_TYPE.put("application/zip", ArchiveReader.FORMAT_ZIP);
+        FORMATS_BY_CONTENT_TYPE.put("application/x-zip-compressed", ArchiveReader.FORMAT_ZIP);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        doArchiveUpload(request, response);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        doArchiveUpload(request, response);
+    }
+
+    protected void doArchiveUpload(HttpServletRequest request, HttpServletResponse response) {
+        Map<String, String> parameters = getQueryParameters(request);
+        PublishTransaction transaction = null;
+        try {
+            if (!isAuthenticated(parameters)) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Illegal publish request received. Password parameter does not match configured password for deployer.");
+                }
+                return;
+            }
+            PublishingTarget target = targetManager.getTarget(parameters.get(PARAM_TARGET));
+            if (target == null) {
+                throw new IOException("No configuration exists for " + parameters.get(PARAM_TARGET));
+            }
+            UploadLimits limits = createUploadLimits();
+            limits.apply(target);
+            limits.checkContentLength(request.getContentLength());
+            String format = getFormat(request, parameters);
+            if (format == null) {
+                throw new ContentRejectedException("Unknown archive format, set the format parameter to tar, tgz or zip");
+            }
+
+            PublishedChangeSet changeSet = new PublishedChangeSet(new ArrayList<String>(), new ArrayList<String>(),
+                                                                  null);
+            List<String> deletedFiles = new ArrayList<String>();
+            transaction = beginTransaction(parameters, target);
+            InputStream archive = limitRequest(decodeRequest(request), limits).getInputStream();
+            int count = extract(ArchiveReader.open(format, archive), parameters, target, changeSet, transaction,
+                                deletedFiles, limits);
+
+            if (!deletedFiles.isEmpty()) {
+                if (StringUtils.isNotEmpty(parameters.get(PARAM_DELETED_FILES))) {
+                    deletedFiles.add(0, parameters.get(PARAM_DELETED_FILES));
+                }
+                parameters.put(PARAM_DELETED_FILES, StringUtils.join(deletedFiles, FILES_SEPARATOR));
+            }
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Extracted " + count + " files from " + format + " archive for " + target.getName());
+            }
+            PublishResult result = deployFiles(parameters, Collections.<String, InputStream>emptyMap(), changeSet,
+                                                transaction);
+            writeSuccess(response, result);
+        } catch (Exception e) {
+            if (transaction != null) {
+                transaction.close();
+            }
+            handleErrorCase(null, response, e);
+        }
+    }
+
+    /**
+     * write the files of the archive to the target one by one as they're read
+     *
+     * @param reader
+     * @param parameters
+     * @param target
+     * @param changeSet
+     * @param transaction
+     * @param deletedFiles
+     *          collects the paths listed in the delete manifest
+     * @param limits
+     * @return the number of files written
+     * @throws IOException
+     */
+    protected int extract(ArchiveReader reader, Map<String, String> parameters, PublishingTarget target,
+                          PublishedChangeSet changeSet, PublishTransaction transaction, List<String> deletedFiles,
+                          UploadLimits limits) throws IOException {
+        // each entry is written as a single file part, so the per part parameters of the request don't apply
+        Map<String, String> entryParameters = new HashMap<String, String>(parameters);
+        entryParameters.remove(getEncodingParamName(CONTENT_FIELD));
+        entryParameters.remove(getEncodingParamName(METADATA_FIELD));
+        String locationParamName = getLocationParamName(CONTENT_FIELD);
+
+        int count = 0;
+        try {
+            for (String name = reader.nextEntry(); name != null; name = reader.nextEntry()) {
+                name = StringUtils.removeStart(StringUtils.removeStart(name, "./"), "/");
+                checkEntryName(name);
+                if (DELETED_FILES_ENTRY.equals(name)) {
+                    readDeletedFiles(reader.getEntryStream(), deletedFiles);
+                    continue;
+                }
+                String fieldName;
+                String location;
+                if (name.startsWith(CONTENT_ENTRY_PREFIX)) {
+                    fieldName = CONTENT_FIELD;
+                    location = name.substring(CONTENT_ENTRY_PREFIX.length() - 1);
+                } else if (name.startsWith(METADATA_ENTRY_PREFIX)) {
+                    fieldName = METADATA_FIELD;
+                    location = name.substring(METADATA_ENTRY_PREFIX.length() - 1);
+                } else {
+                    throw new ContentRejectedException("Unexpected archive entry " + name + ", files must be under " +
+                                                       CONTENT_ENTRY_PREFIX + " or " + METADATA_ENTRY_PREFIX);
+                }
+                limits.addPart(name);
+                entryParameters.put(locationParamName, location);
+                writeFile(fieldName, reader.getEntryStream(), entryParameters, target, changeSet, transaction);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    /**
+     * reject entries with .. segments, which could be written outside of the target folders
+     */
+    private void checkEntryName(String name) throws ContentRejectedException {
+        for (String segment : StringUtils.split(name, "/\\")) {
+            if (segment.equals("..")) {
+                throw new ContentRejectedException("Invalid archive entry " + name);
+            }
+        }
+    }
+
+    private void readDeletedFiles(InputStream manifest, List<String> deletedFiles) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (StringUtils.isNotBlank(line)) {
+                deletedFiles.add(line.trim());
+            }
+        }
+    }
+
+    private String getFormat(HttpServletRequest request, Map<String, String> parameters) {
+        String format = parameters.get(PARAM_FORMAT);
+        if (StringUtils.isEmpty(format) && request.getContentType() != null) {
+            String contentType = StringUtils.substringBefore(request.getContentType(), ";").trim().toLowerCase();
+            format = FORMATS_BY_CONTENT_TYPE.get(contentType);
+        }
+        if (format != null && !format.equalsIgnoreCase(ArchiveReader.FORMAT_TAR)
+            && !format.equalsIgnoreCase(ArchiveReader.FORMAT_TGZ) && !format.equalsIgnoreCase("tar.gz")
+            && !format.equalsIgnoreCase(ArchiveReader.FORMAT_ZIP)) {
+            return null;
+        }
+        return format;
+    }
+
+}
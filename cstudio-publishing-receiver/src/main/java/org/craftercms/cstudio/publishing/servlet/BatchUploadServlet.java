@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.PublishedChangeSet;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.exception.PublishRejectedException;
+import org.craftercms.cstudio.publishing.exception.PublishTooLargeException;
+import org.craftercms.cstudio.publishing.target.PublishTransaction;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * <p>Receives a stream of publishes in a single long-lived request, so frequent small publishes don't pay for a
+ * request each. The password goes in the query string, and the body is a sequence of frames, each a publish of its
+ * own:</p>
+ * <pre>
+ * PUBLISH target=foo&amp;siteId=site&amp;contentLocation0=/site/website/index.xml&amp;deletedFiles=...
+ * FILE contentFile0 1234
+ * &lt;1234 bytes&gt;
+ * END
+ * </pre>
+ * <p>The PUBLISH line holds the publish parameters URL encoded, the same ones as a multipart publish, and each FILE
+ * line is followed by exactly the given number of bytes of the file, and then optionally by a line break before the
+ * next line. The response is streamed back with one line of JSON per frame, sent as soon as the frame has been
+ * written to the target: the publish result, or the error code and message if the frame failed. A failed frame
+ * doesn't stop the batch unless the stream itself is malformed.</p>
+ * <p>A frame is only acknowledged once its files, and the folders they were written to, have been synced to disk, so
+ * an acknowledged frame survives a crash whether the target is {@code transactional} or not.</p>
+ * <p>Frames are post processed in the background through the publish queue so the next frame can be written while
+ * the previous one is post processed, and their progress can be tracked by the publish id in their result.</p>
+ */
+public class BatchUploadServlet extends FileUploadServlet {
+
+    private static final long serialVersionUID = -1887360945121740287L;
+
+    private static final Log LOGGER = LogFactory.getLog(BatchUploadServlet.class);
+
+    public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+    public static final String FRAME_PUBLISH = "PUBLISH";
+    public static final String FRAME_FILE = "FILE";
+    public static final String FRAME_END = "END";
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        doBatchUpload(request, response);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        doBatchUpload(request, response);
+    }
+
+    protected void doBatchUpload(HttpServletRequest request, HttpServletResponse response) {
+        Map<String, String> requestParameters = getQueryParameters(request);
+        if (!isAuthenticated(requestParameters)) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Illegal publish request received. Password parameter does not match configured password for deployer.");
+            }
+            return;
+        }
+        int frames = 0;
+        try {
+            FrameReader reader = new FrameReader(decodeRequest(request).getInputStream());
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(CONTENT_TYPE_NDJSON);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            PrintWriter writer = response.getWriter();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                frames++;
+                if (!processFrame(line, frames, reader, requestParameters, writer)) {
+                    break;
+                }
+                writer.flush();
+                response.flushBuffer();
+            }
+            writer.flush();
+        } catch (Exception e) {
+            if (frames == 0) {
+                handleErrorCase(null, response, e);
+            } else {
+                LOGGER.error("Batch publish failed after " + frames + " frames", e);
+            }
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Received batch of " + frames + " publishes");
+        }
+    }
+
+    /**
+     * write a frame to its target and acknowledge it
+     *
+     * @param line
+     *          first line of the frame
+     * @param frame
+     *          number of the frame in the batch
+     * @param reader
+     * @param requestParameters
+     * @param writer
+     * @return false if the stream can't be read past the frame
+     * @throws IOException
+     */
+    protected boolean processFrame(String line, int frame, FrameReader reader, Map<String, String> requestParameters,
+                                   PrintWriter writer) throws IOException {
+        PublishTransaction transaction = null;
+        try {
+            if (!line.startsWith(FRAME_PUBLISH)) {
+                throw new FrameFormatException("Expected a " + FRAME_PUBLISH + " line, got " +
+                                               StringUtils.abbreviate(line, 100));
+            }
+            Map<String, String> parameters = new HashMap<String, String>(requestParameters);
+            for (NameValuePair parameter : URLEncodedUtils.parse(line.substring(FRAME_PUBLISH.length()).trim(),
+                                                                 Charset.forName("UTF-8"))) {
+                parameters.put(parameter.getName(), parameter.getValue());
+            }
+            PublishingTarget target = targetManager.getTarget(parameters.get(PARAM_TARGET));
+            if (target == null) {
+                throw new ContentRejectedException("No configuration exists for " + parameters.get(PARAM_TARGET));
+            }
+            UploadLimits limits = createUploadLimits();
+            limits.apply(target);
+            transaction = beginTransaction(parameters, target);
+            transaction.setDurable(true);
+            PublishedChangeSet changeSet = new PublishedChangeSet(new ArrayList<String>(), new ArrayList<String>(),
+                                                                  null);
+            for (String fileLine = reader.readLine(); !FRAME_END.equals(fileLine); fileLine = reader.readLine()) {
+                String[] fields = fileLine != null ? StringUtils.split(fileLine, ' ') : null;
+                if (fields == null || fields.length != 3 || !FRAME_FILE.equals(fields[0]) ||
+                    !NumberUtils.isDigits(fields[2])) {
+                    throw new FrameFormatException("Expected a " + FRAME_FILE + " or " + FRAME_END + " line, got " +
+                                                   StringUtils.abbreviate(fileLine, 100));
+                }
+                limits.addPart(fields[1]);
+                InputStream content = limits.count(reader.openFile(Long.parseLong(fields[2])));
+                writeFile(fields[1], content, parameters, target, changeSet, transaction);
+                reader.skipFile();
+            }
+            PublishResult result = deployFiles(parameters, Collections.<String, InputStream>emptyMap(), changeSet,
+                                               transaction);
+            writer.println("{ \"frame\": " + frame + ", \"code\": " + HttpServletResponse.SC_OK + ", \"result\": " +
+                           result.toJson() + " }");
+            return true;
+        } catch (FrameFormatException | EOFException e) {
+            close(transaction);
+            writeError(writer, frame, HttpServletResponse.SC_BAD_REQUEST, e);
+            return false;
+        } catch (PublishRejectedException e) {
+            close(transaction);
+            writeError(writer, frame, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
+            return reader.skipFrame();
+        } catch (PublishTooLargeException e) {
+            close(transaction);
+            writeError(writer, frame, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e);
+            return reader.skipFrame();
+        } catch (ContentRejectedException e) {
+            close(transaction);
+            writeError(writer, frame, HttpServletResponse.SC_BAD_REQUEST, e);
+            return reader.skipFrame();
+        } catch (IOException e) {
+            LOGGER.error("Failed to write frame " + frame + " of batch publish", e);
+            close(transaction);
+            writeError(writer, frame, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+            return reader.skipFrame();
+        }
+    }
+
+    /**
+     * frames are always post processed in the background, so the next one can be written meanwhile
+     */
+    @Override
+    protected boolean isAsyncPostProcessing(PublishingTarget target) {
+        return true;
+    }
+
+    private void writeError(PrintWriter writer, int frame, int code, Exception e) {
+        if (LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Frame " + frame + " of batch publish failed: " + e.getMessage());
+        }
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        StringBuilder json = new StringBuilder("{ \"frame\": ").append(frame).append(", \"code\": ").append(code);
+        if (e instanceof PublishRejectedException) {
+            json.append(", \"retryAfter\": ").append(((PublishRejectedException) e).getRetryAfter());
+        }
+        json.append(", \"error\": \"").append(StringEscapeUtils.escapeJson(message)).append("\" }");
+        writer.println(json);
+    }
+
+    private void close(PublishTransaction transaction) {
+        if (transaction != null) {
+            transaction.close();
+        }
+    }
+
+    /**
+     * thrown when the stream of frames is malformed and can't be read any further
+     */
+    protected static class FrameFormatException extends ContentRejectedException {
+
+        private static final long serialVersionUID = 6064233426917362153L;
+
+        public FrameFormatException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * reads the lines and files of the frames from the request body
+     */
+    protected static class FrameReader {
+
+        private final PushbackInputStream in;
+        private long remaining = 0;
+        private boolean afterFile;
+
+        public FrameReader(InputStream in) {
+            this.in = new PushbackInputStream(in, 2);
+        }
+
+        /**
+         * @return the next line, without its line break, or null at the end of the stream
+         * @throws IOException
+         */
+        public String readLine() throws IOException {
+            skipFile();
+            if (afterFile) {
+                afterFile = false;
+                skipLineBreak();
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    if (line.size() == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Batch ended in the middle of a line");
+                }
+                if (line.size() >= MAX_LINE_LENGTH) {
+                    throw new FrameFormatException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                line.write(b);
+            }
+            return StringUtils.removeEnd(new String(line.toByteArray(), StandardCharsets.UTF_8), "\r");
+        }
+
+        /**
+         * @param length
+         * @return stream over the next length bytes, closing it leaves the request open
+         */
+        public InputStream openFile(long length) {
+            remaining = length;
+            afterFile = true;
+            return new InputStream() {
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = in.read();
+                    if (b < 0) {
+                        throw new EOFException("Batch ended in the middle of a file");
+                    }
+                    remaining--;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Batch ended in the middle of a file");
+                    }
+                    remaining -= read;
+                    return read;
+                }
+
+            };
+        }
+
+        /**
+         * skip what's left of the current file
+         *
+         * @throws IOException
+         */
+        public void skipFile() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Batch ended in the middle of a file");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        /**
+         * skip the line break that can follow the bytes of a file
+         *
+         * @throws IOException
+         */
+        private void skipLineBreak() throws IOException {
+            int b = in.read();
+            if (b == '\r') {
+                int next = in.read();
+                if (next == '\n') {
+                    return;
+                }
+                if (next >= 0) {
+                    in.unread(next);
+                }
+            } else if (b == '\n') {
+                return;
+            }
+            if (b >= 0) {
+                in.unread(b);
+            }
+        }
+
+        /**
+         * skip the rest of the current frame after it failed
+         *
+         * @return false if the end of the frame couldn't be found
+         */
+        public boolean skipFrame() {
+            try {
+                for (String line = readLine(); line != null; line = readLine()) {
+                    if (FRAME_END.equals(line)) {
+                        return true;
+                    }
+                    String[] fields = StringUtils.split(line, ' ');
+                    if (fields.length != 3 || !FRAME_FILE.equals(fields[0]) || !NumberUtils.isDigits(fields[2])) {
+                        return false;
+                    }
+                    remaining = Long.parseLong(fields[2]);
+                    afterFile = true;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to skip failed frame", e);
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * <p>Resumable upload of the files of a publish, in chunks sent as separate requests. Meant for large assets, where
+ * re-sending a whole multipart publish after a network failure is too costly. An upload goes through these
+ * operations, selected with the op parameter:</p>
+ * <ul>
+ *     <li>init: takes the same parameters as a publish, plus the size of each file (contentSize, contentSize1,
+ *     metadataSize1... for contentFile, contentFile1, metadataFile1...). Returns the upload id.</li>
+ *     <li>chunk: the request body is written to the file named by the field parameter at the given offset. The
+ *     parameters of a chunk are read from the query string only. With the checksum parameter (MD5 in hex) the chunk is only accepted if it matches. Chunks can be sent in any order
+ *     and in parallel.</li>
+ *     <li>status: lists the byte ranges received of each file, so an interrupted upload can send only what's
+ *     missing.</li>
+ *     <li>commit: once all the files are complete, publishes them like a regular publish request.</li>
+ *     <li>abort: drops the upload.</li>
+ * </ul>
+ * <p>Uploads are kept in a folder so they survive a restart, and are dropped once unused for maxUploadAge.</p>
+ */
+public class ChunkedUploadServlet extends FileUploadServlet {
+
+    private static final long serialVersionUID = -3725024745785392381L;
+
+    private static final Log LOGGER = LogFactory.getLog(ChunkedUploadServlet.class);
+
+    public static final String PARAM_OPERATION = "op";
+    public static final String PARAM_UPLOAD_ID = "uploadId";
+    public static final String PARAM_FIELD = "field";
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_CHECKSUM = "checksum";
+
+    public static final String OPERATION_INIT = "init";
+    public static final String OPERATION_CHUNK = "chunk";
+    public static final String OPERATION_STATUS = "status";
+    public static final String OPERATION_COMMIT = "commit";
+    public static final String OPERATION_ABORT = "abort";
+
+    private static final String PARAMETERS_FILE = "upload.properties";
+    private static final String PART_EXTENSION = ".part";
+    private static final String RANGES_EXTENSION = ".ranges";
+    private static final String CHUNK_EXTENSION = ".chunk";
+    private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("[0-9a-f\\-]{36}");
+    private static final Pattern SIZE_PARAM_PATTERN = Pattern.compile("(content|metadata)Size\\d*");
+
+    /**
+     * <p>Folder where uploads in progress are kept</p>
+     */
+    protected String folder;
+
+    /**
+     * <p>Max size of a chunk in bytes</p>
+     */
+    protected long maxChunkSize = 64 * 1024 * 1024;
+
+    /**
+     * <p>Milliseconds after which an upload that received nothing is dropped</p>
+     */
+    protected long maxUploadAge = 24 * 60 * 60 * 1000;
+
+    private final ConcurrentMap<String, Object> uploadLocks = new ConcurrentHashMap<String, Object>();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        doUpload(request, response);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        doUpload(request, response);
+    }
+
+    protected void doUpload(HttpServletRequest request, HttpServletResponse response) {
+        Map<String, String> parameters = getParameters(request);
+        try {
+            if (!isAuthenticated(parameters)) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Illegal upload request received. Password parameter does not match configured password for deployer.");
+                }
+                return;
+            }
+
+            String operation = parameters.get(PARAM_OPERATION);
+            if (OPERATION_INIT.equals(operation)) {
+                init(parameters, response);
+                return;
+            }
+
+            String uploadId = parameters.get(PARAM_UPLOAD_ID);
+            File uploadFolder = getUploadFolder(uploadId);
+            if (uploadFolder == null || !uploadFolder.isDirectory()) {
+                writeError(response, HttpServletResponse.SC_NOT_FOUND, "No upload found by id: " + uploadId);
+            } else if (OPERATION_CHUNK.equals(operation)) {
+                writeChunk(uploadId, uploadFolder, parameters, request, response);
+            } else if (OPERATION_STATUS.equals(operation)) {
+                writeStatus(response, HttpServletResponse.SC_OK, uploadId, uploadFolder);
+            } else if (OPERATION_COMMIT.equals(operation)) {
+                commit(uploadId, uploadFolder, response);
+            } else if (OPERATION_ABORT.equals(operation)) {
+                synchronized (getUploadLock(uploadId)) {
+                    FileUtils.deleteDirectory(uploadFolder);
+                }
+                uploadLocks.remove(uploadId);
+                response.setStatus(HttpServletResponse.SC_OK);
+            } else {
+                writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown operation: " + operation);
+            }
+        } catch (Exception e) {
+            handleErrorCase(null, response, e);
+        }
+    }
+
+    /**
+     * start an upload, saving the publish parameters
+     */
+    protected void init(Map<String, String> parameters, HttpServletResponse response) throws IOException {
+        PublishingTarget target = targetManager.getTarget(parameters.get(PARAM_TARGET));
+        if (target == null) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, "No configuration exists for " +
+                                                                     parameters.get(PARAM_TARGET));
+            return;
+        }
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (SIZE_PARAM_PATTERN.matcher(parameter.getKey()).matches() &&
+                NumberUtils.toLong(parameter.getValue(), -1) < 0) {
+                writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid size " + parameter.getValue() +
+                                                                         " for " + parameter.getKey());
+                return;
+            }
+        }
+        // the whole upload is checked against the limits of the target before any chunk is accepted
+        UploadLimits limits = createUploadLimits();
+        limits.apply(target);
+        long declaredBytes = 0;
+        for (Map.Entry<String, Long> size : getFileSizes(parameters).entrySet()) {
+            limits.addPart(size.getKey());
+            declaredBytes += size.getValue();
+        }
+        limits.checkContentLength(declaredBytes);
+        removeExpiredUploads();
+
+        String uploadId = UUID.randomUUID().toString();
+        File uploadFolder = new File(folder, uploadId);
+        FileUtils.forceMkdir(uploadFolder);
+
+        Properties uploadParameters = new Properties();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (!name.equals(PARAM_PASSWORD) && !name.equals(PARAM_OPERATION)) {
+                uploadParameters.setProperty(name, parameter.getValue());
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(uploadFolder, PARAMETERS_FILE))) {
+            uploadParameters.store(out, null);
+            out.getFD().sync();
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Started upload " + uploadId + " for " + parameters.get(PARAM_TARGET));
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MimeTypeUtils.APPLICATION_JSON_VALUE);
+        response.getWriter().println("{ \"uploadId\": \"" + uploadId + "\" }");
+    }
+
+    /**
+     * write the request body at the given offset of a file of the upload. The body is spooled and checked first, and
+     * only copied into the file once complete and matching its checksum, so a broken retry never overwrites bytes
+     * already received. The copy is done holding the lock of the upload, so it can't overlap a commit or an abort.
+     */
+    protected void writeChunk(String uploadId, File uploadFolder, Map<String, String> parameters,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String field = parameters.get(PARAM_FIELD);
+        Long declaredSize = getFileSizes(loadParameters(uploadFolder)).get(field);
+        long size = declaredSize != null ? declaredSize : -1;
+        long offset = NumberUtils.toLong(parameters.get(PARAM_OFFSET), -1);
+        long length = request.getContentLength();
+        if (size < 0) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown file " + field + " for upload " +
+                                                                     uploadId);
+            return;
+        }
+        if (offset < 0 || length < 0 || length > maxChunkSize || offset + length > size) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid chunk of " + length + " bytes at " +
+                                                                     offset + " for " + field + " of " + size +
+                                                                     " bytes");
+            return;
+        }
+
+        File chunk = new File(uploadFolder, field + "." + UUID.randomUUID() + CHUNK_EXTENSION);
+        try {
+            MessageDigest digest = createChunkDigest();
+            long written = 0;
+            InputStream in = request.getInputStream();
+            try (FileOutputStream out = new FileOutputStream(chunk)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while (written < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length,
+                                                                                      length - written))) != -1) {
+                    out.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    written += read;
+                }
+            }
+            if (written != length) {
+                writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Chunk at " + offset + " for " + field +
+                                                                         " ended after " + written + " of " +
+                                                                         length + " bytes");
+                return;
+            }
+            String checksum = parameters.get(PARAM_CHECKSUM);
+            String actual = Hex.encodeHexString(digest.digest());
+            if (StringUtils.isNotEmpty(checksum) && !checksum.equalsIgnoreCase(actual)) {
+                writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Checksum mismatch for chunk at " + offset +
+                                                                         " of " + field + ": expected " + checksum +
+                                                                         ", received " + actual);
+                return;
+            }
+
+            synchronized (getUploadLock(uploadId)) {
+                if (!uploadFolder.isDirectory()) {
+                    writeError(response, HttpServletResponse.SC_NOT_FOUND, "No upload found by id: " + uploadId);
+                    return;
+                }
+                try (FileChannel source = FileChannel.open(chunk.toPath(), StandardOpenOption.READ);
+                     FileChannel part = FileChannel.open(new File(uploadFolder, field + PART_EXTENSION).toPath(),
+                                                         StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    for (long copied = 0; copied < length;) {
+                        copied += source.transferTo(copied, length - copied, part.position(offset + copied));
+                    }
+                    // the range is only recorded once its bytes are on disk
+                    part.force(true);
+                }
+                try (Writer ranges = new OutputStreamWriter(new FileOutputStream(new File(uploadFolder, field +
+                                                                                                      RANGES_EXTENSION),
+                                                                                 true), StandardCharsets.UTF_8)) {
+                    ranges.write(offset + " " + length + "\n");
+                }
+            }
+        } finally {
+            FileUtils.deleteQuietly(chunk);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Received " + length + " bytes at " + offset + " for " + field + " of upload " + uploadId);
+        }
+        writeStatus(response, HttpServletResponse.SC_OK, uploadId, uploadFolder);
+    }
+
+    /**
+     * publish the files of a complete upload
+     */
+    protected void commit(String uploadId, File uploadFolder, HttpServletResponse response) throws IOException {
+        synchronized (getUploadLock(uploadId)) {
+            Map<String, String> parameters = loadParameters(uploadFolder);
+            Map<String, Long> sizes = getFileSizes(parameters);
+            for (Map.Entry<String, Long> size : sizes.entrySet()) {
+                if (getReceivedBytes(uploadFolder, size.getKey()) < size.getValue()) {
+                    writeStatus(response, HttpServletResponse.SC_CONFLICT, uploadId, uploadFolder);
+                    return;
+                }
+            }
+
+            Map<String, InputStream> files = new LinkedHashMap<String, InputStream>();
+            try {
+                for (Map.Entry<String, Long> size : sizes.entrySet()) {
+                    File part = new File(uploadFolder, size.getKey() + PART_EXTENSION);
+                    if (size.getValue() == 0) {
+                        FileUtils.touch(part);
+                    }
+                    files.put(size.getKey(), DeferredInputStream.of(part));
+                }
+                PublishResult result = deployFiles(parameters, files);
+                if (LOGGER.isInfoEnabled()) {
+                    LOGGER.info("Committed upload " + uploadId + " with " + files.size() + " files");
+                }
+                writeSuccess(response, result);
+            } finally {
+                closeAll(files);
+            }
+            FileUtils.deleteQuietly(uploadFolder);
+        }
+        uploadLocks.remove(uploadId);
+    }
+
+    protected void writeStatus(HttpServletResponse response, int status, String uploadId, File uploadFolder)
+            throws IOException {
+        StringBuilder json = new StringBuilder("{ \"uploadId\": \"").append(uploadId).append("\", \"files\": [");
+        boolean first = true;
+        for (Map.Entry<String, Long> size : getFileSizes(loadParameters(uploadFolder)).entrySet()) {
+            json.append(first ? " " : ", ");
+            first = false;
+            json.append("{ \"field\": \"").append(size.getKey()).append("\", \"size\": ").append(size.getValue());
+            json.append(", \"received\": [");
+            boolean firstRange = true;
+            for (long[] range : getReceivedRanges(uploadFolder, size.getKey())) {
+                json.append(firstRange ? "" : ", ").append("[").append(range[0]).append(", ").append(range[1])
+                    .append("]");
+                firstRange = false;
+            }
+            json.append("] }");
+        }
+        json.append(" ] }");
+
+        response.setStatus(status);
+        response.setContentType(MimeTypeUtils.APPLICATION_JSON_VALUE);
+        response.getWriter().println(json);
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        if (LOGGER.isWarnEnabled()) {
+            LOGGER.warn(message);
+        }
+        response.sendError(status, message);
+    }
+
+    /**
+     * get the sizes declared for the files of an upload, by field name
+     */
+    private Map<String, Long> getFileSizes(Map<String, String> parameters) {
+        Map<String, Long> sizes = new TreeMap<String, Long>();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (SIZE_PARAM_PATTERN.matcher(parameter.getKey()).matches()) {
+                sizes.put(parameter.getKey().replace("Size", "File"), NumberUtils.toLong(parameter.getValue()));
+            }
+        }
+        return sizes;
+    }
+
+    private long getReceivedBytes(File uploadFolder, String field) throws IOException {
+        long received = 0;
+        for (long[] range : getReceivedRanges(uploadFolder, field)) {
+            received += range[1] - range[0];
+        }
+        return received;
+    }
+
+    /**
+     * get the byte ranges received for a file, merged and sorted
+     *
+     * @return start (inclusive) and end (exclusive) of each range
+     */
+    private List<long[]> getReceivedRanges(File uploadFolder, String field) throws IOException {
+        File rangesFile = new File(uploadFolder, field + RANGES_EXTENSION);
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (rangesFile.exists()) {
+            for (String line : FileUtils.readLines(rangesFile, StandardCharsets.UTF_8.name())) {
+                String[] fields = StringUtils.split(line, ' ');
+                if (fields.length == 2) {
+                    long start = NumberUtils.toLong(fields[0]);
+                    ranges.add(new long[] { start, start + NumberUtils.toLong(fields[1]) });
+                }
+            }
+        }
+        Collections.sort(ranges, (range1, range2) -> Long.compare(range1[0], range2[0]));
+
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else if (range[1] > range[0]) {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private Map<String, String> loadParameters(File uploadFolder) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(new File(uploadFolder, PARAMETERS_FILE))) {
+            properties.load(in);
+        }
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            parameters.put(name, properties.getProperty(name));
+        }
+        return parameters;
+    }
+
+    /**
+     * get the request parameters. Those of a chunk are only taken from the query string, so the body is never
+     * parsed as a form whatever content type the client sends.
+     */
+    private Map<String, String> getParameters(HttpServletRequest request) {
+        Map<String, String> parameters = getQueryParameters(request);
+        if (OPERATION_CHUNK.equals(parameters.get(PARAM_OPERATION))) {
+            return parameters;
+        }
+        Enumeration<String> names = request.getParameterNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            parameters.put(name, request.getParameter(name));
+        }
+        return parameters;
+    }
+
+    /**
+     * get the folder of an upload, or null if the id isn't valid
+     */
+    private File getUploadFolder(String uploadId) {
+        if (uploadId == null || !UPLOAD_ID_PATTERN.matcher(uploadId).matches()) {
+            return null;
+        }
+        return new File(folder, uploadId);
+    }
+
+    private Object getUploadLock(String uploadId) {
+        Object lock = new Object();
+        Object existing = uploadLocks.putIfAbsent(uploadId, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private void removeExpiredUploads() {
+        File[] uploadFolders = new File(folder).listFiles();
+        if (uploadFolders == null) {
+            return;
+        }
+        long expiration = System.currentTimeMillis() - maxUploadAge;
+        for (File uploadFolder : uploadFolders) {
+            if (uploadFolder.isDirectory() && isExpired(uploadFolder, expiration)) {
+                LOGGER.info("Dropping expired upload " + uploadFolder.getName());
+                FileUtils.deleteQuietly(uploadFolder);
+                uploadLocks.remove(uploadFolder.getName());
+            }
+        }
+    }
+
+    private boolean isExpired(File uploadFolder, long expiration) {
+        File[] files = uploadFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.lastModified() > expiration) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private MessageDigest createChunkDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest not available", e);
+        }
+    }
+
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
+
+    public void setMaxChunkSize(long maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public void setMaxUploadAge(long maxUploadAge) {
+        this.maxUploadAge = maxUploadAge;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * Stream over a received file that is only opened when it's first read, so a publish with many files holds one open
+ * file per file being written instead of one per file received. A spooled part is deleted once its stream is
+ * closed, releasing its memory or temp file right after it has been written.
+ */
+public abstract class DeferredInputStream extends InputStream {
+
+    private InputStream in;
+    private boolean closed = false;
+
+    /**
+     * @param item
+     *          spooled part
+     * @return stream over the part, deleting it when closed
+     */
+    public static DeferredInputStream of(final FileItem item) {
+        return new DeferredInputStream() {
+
+            @Override
+            protected InputStream open() throws IOException {
+                return item.getInputStream();
+            }
+
+            @Override
+            protected void release() {
+                item.delete();
+            }
+
+        };
+    }
+
+    /**
+     * @param file
+     * @return stream over the file
+     */
+    public static DeferredInputStream of(final File file) {
+        return new DeferredInputStream() {
+
+            @Override
+            protected InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+        };
+    }
+
+    protected abstract InputStream open() throws IOException;
+
+    /**
+     * called once the stream is closed
+     */
+    protected void release() {
+    }
+
+    private InputStream getStream() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (in == null) {
+            in = open();
+        }
+        return in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return getStream().read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return getStream().read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        return getStream().skip(count);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in != null ? in.available() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                release();
+            }
+        }
+    }
+
+}
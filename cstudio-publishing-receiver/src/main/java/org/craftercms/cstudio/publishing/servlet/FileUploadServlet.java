@@ -16,27 +16,64 @@
  */
 package org.craftercms.cstudio.publishing.servlet;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileItemHeadersSupport;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.ParameterParser;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.craftercms.cstudio.publishing.PublishResult;
 import org.craftercms.cstudio.publishing.PublishedChangeSet;
+import org.craftercms.cstudio.publishing.PublishResult.FileStatus;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.exception.PublishRejectedException;
+import org.craftercms.cstudio.publishing.exception.PublishTooLargeException;
 import org.craftercms.cstudio.publishing.exception.PublishingException;
-import org.craftercms.cstudio.publishing.processor.PublishingProcessor;
+import org.craftercms.cstudio.publishing.processor.PostProcessorChain;
+import org.craftercms.cstudio.publishing.processor.PublishingPreProcessor;
+import org.craftercms.cstudio.publishing.queue.PublishQueue;
+import org.craftercms.cstudio.publishing.queue.QueuedPublish;
+import org.craftercms.cstudio.publishing.target.PathLocks;
+import org.craftercms.cstudio.publishing.target.PublishAdmission;
+import org.craftercms.cstudio.publishing.target.PublishTransaction;
 import org.craftercms.cstudio.publishing.target.PublishingTarget;
 import org.craftercms.cstudio.publishing.target.TargetManager;
+import org.craftercms.cstudio.publishing.target.TargetPathResolver;
+import org.craftercms.cstudio.publishing.target.TreeDeleter;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.util.StringUtils;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author Dejan Brkic
@@ -54,14 +91,33 @@ public class FileUploadServlet extends HttpServlet {
 	public static String PARAM_SITE = "siteId";
     public static String PARAM_TARGET = "target";
 	public static String PARAM_DELETED_FILES = "deletedFiles";
-	public static String CONFIG_ROOT = "root";
-    public static String CONFIG_CONTENT_FOLDER = "contentFolder";
-    public static String CONFIG_METADATA_FOLDER = "metadataFolder";
-    public static String CONFIG_METADATA_FILENAME_SUFFIX = ".meta.xml";
+	public static String CONFIG_ROOT = PublishingTarget.CONFIG_ROOT;
+    public static String CONFIG_CONTENT_FOLDER = PublishingTarget.CONFIG_CONTENT_FOLDER;
+    public static String CONFIG_METADATA_FOLDER = PublishingTarget.CONFIG_METADATA_FOLDER;
+    public static String CONFIG_METADATA_FILENAME_SUFFIX = PublishingTarget.CONFIG_METADATA_FILENAME_SUFFIX;
     public static String CONFIG_MULTI_TENANCY_VARIABLE = "\\{siteId\\}";
+    public static String CONFIG_TRANSACTIONAL = "transactional";
+    public static String CONFIG_DEDUPLICATE = "deduplicate";
+    public static String CONFIG_DEDUPLICATE_SKIP_WRITE = "deduplicateSkipWrite";
 
 	public static String FILES_SEPARATOR = ",";
 
+	public static final String HEADER_PUBLISH_ID = "X-Publish-Id";
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	public static final String HEADER_RETRY_AFTER = "Retry-After";
+
+	/** content encodings accepted for the whole request and for each file part **/
+	public static final String ENCODING_IDENTITY = "identity";
+	public static final String ENCODING_GZIP = "gzip";
+	public static final String ENCODING_X_GZIP = "x-gzip";
+	public static final String ENCODING_DEFLATE = "deflate";
+
+	/** digest used to recognize files republished with the same contents **/
+	private static final String DEDUPLICATION_ALGORITHM = "MD5";
+
+	/** charset used for form fields that don't declare one, same as {@link FileItem#getString()} **/
+	private static final String DEFAULT_FORM_FIELD_CHARSET = "ISO-8859-1";
+
 	protected TargetManager targetManager;
 
     private String password;
@@ -72,56 +128,491 @@ public class FileUploadServlet extends HttpServlet {
         this.password = password;
     }
 
+	/** write file parts straight to the target while the request is being read **/
+	private boolean streamingEnabled = false;
+
+	public boolean isStreamingEnabled() {
+		return streamingEnabled;
+	}
+
+	public void setStreamingEnabled(boolean streamingEnabled) {
+		this.streamingEnabled = streamingEnabled;
+	}
+
+	protected PostProcessorChain postProcessorChain = new PostProcessorChain();
+
+	public PostProcessorChain getPostProcessorChain() {
+		return postProcessorChain;
+	}
+
+	public void setPostProcessorChain(PostProcessorChain postProcessorChain) {
+		this.postProcessorChain = postProcessorChain;
+	}
+
+	/** journals change sets before post processing, and queues them for targets that post process asynchronously **/
+	protected PublishQueue publishQueue;
+
+	/** max number of files in a request, 0 for no limit. Targets can set their own with the maxParts parameter **/
+	protected int maxParts = 0;
+	/** max size in bytes of a request, 0 for no limit. Targets can set their own with the maxBytes parameter **/
+	protected long maxBytes = 0;
+	/** bytes of the received files of a request kept in memory. Targets can set their own with the sizeThreshold parameter **/
+	protected int sizeThreshold = DiskFileItemFactory.DEFAULT_SIZE_THRESHOLD;
+
+	public void setMaxParts(int maxParts) {
+		this.maxParts = maxParts;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public void setSizeThreshold(int sizeThreshold) {
+		this.sizeThreshold = sizeThreshold;
+	}
+
+	public PublishQueue getPublishQueue() {
+		return publishQueue;
+	}
+
+	public void setPublishQueue(PublishQueue publishQueue) {
+		this.publishQueue = publishQueue;
+	}
+
     @Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) {
-		if (ServletFileUpload.isMultipartContent(request)) {
-			ServletFileUpload servletFileUpload = createServletFileUpload();
-			List<FileItem> fileItemsList = null;
-			Map<String, String> parameters = new HashMap<String, String>(11);
-			Map<String, InputStream> files = new HashMap<String, InputStream>(11);
-			try {
-				fileItemsList = servletFileUpload.parseRequest(request);
-				for (FileItem fileItem : fileItemsList) {
-					if (fileItem.isFormField()) {
-						parameters.put(fileItem.getFieldName(), fileItem.getString());
+		UploadLimits limits = createUploadLimits();
+		try {
+			limits.checkContentLength(request.getContentLength());
+			request = limitRequest(decodeRequest(request), limits);
+		} catch (IOException e) {
+			handleErrorCase(null, response, e);
+			return;
+		}
+		if (ServletFileUpload.isMultipartContent(request) && streamingEnabled) {
+			doStreamingUpload(request, response, limits);
+		} else if (ServletFileUpload.isMultipartContent(request)) {
+			doBufferedUpload(request, response, limits);
+		}
+	}
+
+	/**
+	 * read the whole multipart request before writing anything to the target. Each file part is spooled as it
+	 * arrives and opened again only when it's written, after which it's deleted.
+	 *
+	 * @param request
+	 * @param response
+	 * @param limits
+	 */
+	protected void doBufferedUpload(HttpServletRequest request, HttpServletResponse response, UploadLimits limits) {
+		ServletFileUpload servletFileUpload = new ServletFileUpload();
+		DiskFileItemFactory spoolFactory = createDiskFileItemFactory();
+		Map<String, String> parameters = new HashMap<String, String>(11);
+		Map<String, InputStream> files = new LinkedHashMap<String, InputStream>(11);
+		List<FileItem> spooledItems = new ArrayList<FileItem>();
+		try {
+			FileItemIterator iterator = servletFileUpload.getItemIterator(request);
+			while (iterator.hasNext()) {
+				FileItemStream item = iterator.next();
+				InputStream itemStream = item.openStream();
+				try {
+					if (item.isFormField()) {
+						addFormField(item.getFieldName(), readFormField(item, itemStream), parameters, limits);
 					} else {
-						files.put(fileItem.getFieldName(), fileItem.getInputStream());
+						limits.addPart(item.getFieldName());
+						addPartEncoding(item.getFieldName(), item, parameters);
+						FileItem spooledItem = spool(item, itemStream, spoolFactory, limits);
+						spooledItems.add(spooledItem);
+						files.put(item.getFieldName(), DeferredInputStream.of(spooledItem));
 					}
+				} finally {
+					IOUtils.closeQuietly(itemStream);
 				}
-				
-				if (LOGGER.isDebugEnabled()) {
-					
-					StringBuilder parametersLog = new StringBuilder("Request Parameters : ");
-					
-					for(Entry<String, String> entry : parameters.entrySet()) {
-						
-					    String key = entry.getKey();
-					    String value = entry.getValue();
-					    
-					    
-					    if(key.equals(PARAM_PASSWORD)){
-					    	value = "********";
-					    }
-					    parametersLog.append(" " + key + " = " + value ); 
+			}
+
+			logParameters(parameters);
+
+			if (isAuthenticated(parameters)) {
+				PublishResult result = deployFiles(parameters, files);
+				writeSuccess(response, result);
+			} else {
+				response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+				if (LOGGER.isWarnEnabled()) {
+					LOGGER.warn("Illegal publish request received. Password parameter does not match configured password for deployer.");
+				}
+			}
+		} catch (Exception e) {
+			handleErrorCase(files, response, e);
+		} finally {
+			closeAll(files);
+			for (FileItem spooledItem : spooledItems) {
+				spooledItem.delete();
+			}
+		}
+	}
+
+	/**
+	 * read the multipart request as a stream, writing each file part directly to its final location in the target
+	 * as soon as the request is authenticated and the part's location is known. Parts that arrive before the
+	 * form fields they depend on are spooled and deployed once the whole request has been read.
+	 *
+	 * @param request
+	 * @param response
+	 * @param limits
+	 */
+	protected void doStreamingUpload(HttpServletRequest request, HttpServletResponse response, UploadLimits limits) {
+		ServletFileUpload servletFileUpload = new ServletFileUpload();
+		DiskFileItemFactory spoolFactory = createDiskFileItemFactory();
+		Map<String, String> parameters = new HashMap<String, String>(11);
+		Map<String, InputStream> files = new LinkedHashMap<String, InputStream>(11);
+		List<FileItem> spooledItems = new ArrayList<FileItem>();
+		PublishedChangeSet changeSet = new PublishedChangeSet(new ArrayList<String>(), new ArrayList<String>(), null);
+		PublishTransaction transaction = null;
+		Set<String> writtenEncodingParams = new HashSet<String>();
+		try {
+			FileItemIterator iterator = servletFileUpload.getItemIterator(request);
+			while (iterator.hasNext()) {
+				FileItemStream item = iterator.next();
+				InputStream itemStream = item.openStream();
+				try {
+					if (!item.isFormField()) {
+						addPartEncoding(item.getFieldName(), item, parameters);
+					}
+					if (item.isFormField()) {
+						if (writtenEncodingParams.contains(item.getFieldName())) {
+							throw new ContentRejectedException(item.getFieldName() + " must be sent before the file it applies to");
+						}
+						addFormField(item.getFieldName(), readFormField(item, itemStream), parameters, limits);
+					} else if (canWriteDirectly(item.getFieldName(), parameters)) {
+						limits.addPart(item.getFieldName());
+						PublishingTarget target = this.targetManager.getTarget(parameters.get(PARAM_TARGET));
+						if (transaction == null) {
+							transaction = beginTransaction(parameters, target);
+						}
+						writeFile(item.getFieldName(), itemStream, parameters, target, changeSet, transaction);
+						writtenEncodingParams.add(getEncodingParamName(item.getFieldName()));
+					} else {
+						if (LOGGER.isDebugEnabled()) {
+							LOGGER.debug("Spooling " + item.getFieldName() + " until the fields it depends on are received");
+						}
+						limits.addPart(item.getFieldName());
+						FileItem spooledItem = spool(item, itemStream, spoolFactory, limits);
+						spooledItems.add(spooledItem);
+						files.put(item.getFieldName(), DeferredInputStream.of(spooledItem));
 					}
-					
-					LOGGER.debug(parametersLog.toString());
+				} finally {
+					IOUtils.closeQuietly(itemStream);
 				}
+			}
+
+			logParameters(parameters);
+
+			if (isAuthenticated(parameters)) {
+				PublishResult result = deployFiles(parameters, files, changeSet, transaction);
+				writeSuccess(response, result);
+			} else {
+				closeAll(files);
+				response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+				if (LOGGER.isWarnEnabled()) {
+					LOGGER.warn("Illegal publish request received. Password parameter does not match configured password for deployer.");
+				}
+			}
+		} catch (Exception e) {
+			if (transaction != null) {
+				transaction.close();
+			}
+			handleErrorCase(files, response, e);
+		} finally {
+			for (FileItem spooledItem : spooledItems) {
+				spooledItem.delete();
+			}
+		}
+	}
+
+	/**
+	 * wrap a request sent with a Content-Encoding so the multipart body is decompressed as it's parsed
+	 *
+	 * @param request
+	 * @return the request to parse
+	 * @throws IOException
+	 * 			if the encoding isn't supported
+	 */
+	protected HttpServletRequest decodeRequest(final HttpServletRequest request) throws IOException {
+		final String encoding = request.getHeader(HEADER_CONTENT_ENCODING);
+		if (!StringUtils.hasText(encoding) || ENCODING_IDENTITY.equalsIgnoreCase(encoding.trim())) {
+			return request;
+		}
+		checkEncoding("request", encoding);
+		return new BodyRequestWrapper(request) {
+
+			@Override
+			protected InputStream wrap(InputStream body) throws IOException {
+				return decode(encoding, body);
+			}
+
+			@Override
+			public int getContentLength() {
+				// the decoded length isn't known until the whole body is read
+				return -1;
+			}
+
+			@Override
+			public String getHeader(String name) {
+				return HEADER_CONTENT_ENCODING.equalsIgnoreCase(name) ? null : super.getHeader(name);
+			}
+
+		};
+	}
+
+	/**
+	 * wrap a request so reading its body past the size limit fails
+	 *
+	 * @param request
+	 * @param limits
+	 * @return the request to parse
+	 */
+	protected HttpServletRequest limitRequest(HttpServletRequest request, final UploadLimits limits) {
+		return new BodyRequestWrapper(request) {
+
+			@Override
+			protected InputStream wrap(InputStream body) {
+				return limits.count(body);
+			}
+
+		};
+	}
+
+	/**
+	 * create the limits of a publish request, before its target is known
+	 *
+	 * @return the limits
+	 */
+	protected UploadLimits createUploadLimits() {
+		return new UploadLimits(maxParts, maxBytes, sizeThreshold);
+	}
+
+	/**
+	 * add a form field to the request parameters, switching to the limits of the target once it's known. Until the
+	 * target field is received only the limits of the servlet apply, so clients should send it before the files;
+	 * files received before it still count towards the target limits once it arrives.
+	 *
+	 * @param name
+	 * @param value
+	 * @param parameters
+	 * @param limits
+	 * @throws PublishTooLargeException
+	 * 			if what was received is already over the target limits
+	 */
+	private void addFormField(String name, String value, Map<String, String> parameters, UploadLimits limits)
+			throws PublishTooLargeException {
+		parameters.put(name, value);
+		if (PARAM_TARGET.equals(name)) {
+			PublishingTarget target = this.targetManager.getTarget(value);
+			if (target != null) {
+				limits.apply(target);
+			}
+		}
+	}
+
+	/**
+	 * copy a file part to memory or to a temp file, depending on its size
+	 *
+	 * @param item
+	 * @param itemStream
+	 * @param spoolFactory
+	 * @param limits
+	 * @return the spooled part
+	 * @throws IOException
+	 */
+	private FileItem spool(FileItemStream item, InputStream itemStream, DiskFileItemFactory spoolFactory,
+			UploadLimits limits) throws IOException {
+		spoolFactory.setSizeThreshold(limits.getSizeThreshold());
+		FileItem spooledItem = spoolFactory.createItem(item.getFieldName(), item.getContentType(), false,
+				item.getName());
+		try {
+			Streams.copy(itemStream, spooledItem.getOutputStream(), true);
+		} catch (IOException e) {
+			spooledItem.delete();
+			throw e;
+		}
+		if (spooledItem.isInMemory()) {
+			limits.addBuffered(spooledItem.getSize());
+		}
+		return spooledItem;
+	}
+
+	/**
+	 * keep the Content-Encoding header of a file part as its encoding parameter, unless the parameter was sent as a
+	 * form field
+	 *
+	 * @param fieldName
+	 * @param part
+	 * @param parameters
+	 */
+	protected void addPartEncoding(String fieldName, Object part, Map<String, String> parameters) {
+		if (part instanceof FileItemHeadersSupport) {
+			// headers may not be available depending on how the part was parsed
+			FileItemHeaders headers = ((FileItemHeadersSupport) part).getHeaders();
+			String encoding = headers != null? headers.getHeader(HEADER_CONTENT_ENCODING) : null;
+			String encodingParamName = getEncodingParamName(fieldName);
+			if (StringUtils.hasText(encoding) && !parameters.containsKey(encodingParamName)) {
+				parameters.put(encodingParamName, encoding);
+			}
+		}
+	}
+
+	/**
+	 * decompress a file part sent with a content encoding, given as the Content-Encoding header of the part or as
+	 * its encoding parameter (contentEncoding, metadataEncoding1...). The part is decompressed as it's written, so
+	 * it's never held uncompressed in memory or in the temp folder.
+	 *
+	 * @param fieldName
+	 * @param parameters
+	 * @param content
+	 * @return the decoded content
+	 * @throws IOException
+	 * 			if the encoding isn't supported
+	 */
+	protected InputStream decodePart(String fieldName, Map<String, String> parameters, InputStream content)
+			throws IOException {
+		String encoding = parameters.get(getEncodingParamName(fieldName));
+		if (!StringUtils.hasText(encoding) || ENCODING_IDENTITY.equalsIgnoreCase(encoding.trim())) {
+			return content;
+		}
+		checkEncoding(fieldName, encoding);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Decoding " + fieldName + " from " + encoding);
+		}
+		return decode(encoding, content);
+	}
+
+	/**
+	 * get encoding param name
+	 *
+	 * @param fieldName
+	 * @return
+	 */
+	protected String getEncodingParamName(String fieldName) {
+		return fieldName.replace("File", "Encoding");
+	}
+
+	private void checkEncoding(String name, String encoding) throws ContentRejectedException {
+		String normalized = encoding.trim().toLowerCase(Locale.ROOT);
+		if (!normalized.equals(ENCODING_GZIP) && !normalized.equals(ENCODING_X_GZIP)
+				&& !normalized.equals(ENCODING_DEFLATE)) {
+			throw new ContentRejectedException("Unsupported content encoding " + encoding + " for " + name);
+		}
+	}
+
+	private InputStream decode(String encoding, InputStream content) throws IOException {
+		if (encoding.trim().equalsIgnoreCase(ENCODING_DEFLATE)) {
+			return new InflaterInputStream(content);
+		} else {
+			return new GZIPInputStream(content, 64 * 1024);
+		}
+	}
+
+	/**
+	 * check if a file part can be written to the target right away, which requires the request to be authenticated
+	 * and the target and the part's location to be known, as well as the site when the target root or folders
+	 * contain the siteId variable
+	 *
+	 * @param fieldName
+	 * @param parameters
+	 * @return true if the part can be written without spooling it
+	 */
+	protected boolean canWriteDirectly(String fieldName, Map<String, String> parameters) {
+		if (!isAuthenticated(parameters) || !parameters.containsKey(getLocationParamName(fieldName))) {
+			return false;
+		}
+		PublishingTarget target = this.targetManager.getTarget(parameters.get(PARAM_TARGET));
+		return target != null && (parameters.containsKey(PARAM_SITE) || !isMultiTenant(target));
+	}
+
+	/**
+	 * @param target
+	 * @return true if the root or the folders of the target contain the siteId variable
+	 */
+	private boolean isMultiTenant(PublishingTarget target) {
+		for (String name : new String[] {CONFIG_ROOT, CONFIG_CONTENT_FOLDER, CONFIG_METADATA_FOLDER}) {
+			String value = target.getParameter(name);
+			if (value != null && value.contains(TargetPathResolver.SITE_VARIABLE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * read a form field value, honoring the charset declared by the part if any
+	 *
+	 * @param item
+	 * @param itemStream
+	 * @return the field value
+	 * @throws IOException
+	 */
+	private String readFormField(FileItemStream item, InputStream itemStream) throws IOException {
+		String charset = null;
+		if (item.getContentType() != null) {
+			ParameterParser parser = new ParameterParser();
+			parser.setLowerCaseNames(true);
+			charset = (String) parser.parse(item.getContentType(), ';').get("charset");
+		}
+		return Streams.asString(itemStream, charset != null ? charset : DEFAULT_FORM_FIELD_CHARSET);
+	}
+
+	/**
+	 * check the request password against the one configured for the deployer
+	 *
+	 * @param parameters
+	 * @return true if the password matches
+	 */
+	protected boolean isAuthenticated(Map<String, String> parameters) {
+		String password = parameters.get(PARAM_PASSWORD);
+		return password != null && password.equalsIgnoreCase(this.password);
+	}
+
+	/**
+	 * log request parameters, masking the password
+	 *
+	 * @param parameters
+	 */
+	private void logParameters(Map<String, String> parameters) {
+		if (LOGGER.isDebugEnabled()) {
+			
+			StringBuilder parametersLog = new StringBuilder("Request Parameters : ");
+			
+			for(Entry<String, String> entry : parameters.entrySet()) {
 				
-                String password = parameters.get(PARAM_PASSWORD);
-                if (password != null && password.equalsIgnoreCase(this.password)) {
-                    deployFiles(parameters, files);
-                    response.setStatus(HttpServletResponse.SC_OK);
-                } else {
-                    response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-                    if (LOGGER.isWarnEnabled()) {
-                        LOGGER.warn("Illegal publish request received. Password parameter does not match configured password for deployer.");
-                    }
-                }
-			} catch (Exception e) {
-				handleErrorCase(files, response, e);
+			    String key = entry.getKey();
+			    String value = entry.getValue();
+			    
+			    
+			    if(key.equals(PARAM_PASSWORD)){
+			    	value = "********";
+			    }
+			    parametersLog.append(" " + key + " = " + value ); 
 			}
+			
+			LOGGER.debug(parametersLog.toString());
+		}
+	}
+
+	/**
+	 * acknowledge a successful publish with its result. Publishes recorded for post processing are acknowledged
+	 * with their id so their progress can be tracked.
+	 *
+	 * @param response
+	 * @param result
+	 * @throws IOException
+	 */
+	protected void writeSuccess(HttpServletResponse response, PublishResult result) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (result.getPublishId() != null) {
+			response.setHeader(HEADER_PUBLISH_ID, result.getPublishId());
 		}
+		response.setContentType(MimeTypeUtils.APPLICATION_JSON_VALUE);
+		response.getWriter().println(result.toJson());
 	}
 
 	/**
@@ -131,13 +622,22 @@ public class FileUploadServlet extends HttpServlet {
 	 * @param response
 	 * @param exception
 	 */
-	private void handleErrorCase(Map<String, InputStream> files, HttpServletResponse response, Exception exception) {
+	protected void handleErrorCase(Map<String, InputStream> files, HttpServletResponse response, Exception exception) {
 		if (LOGGER.isErrorEnabled()) {
 			LOGGER.error("Failed to upload files.", exception);
 		}
 		closeAll(files);
 		try {
-			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exception.getMessage());
+			if (exception instanceof PublishRejectedException) {
+				response.setHeader(HEADER_RETRY_AFTER, Integer.toString(((PublishRejectedException) exception).getRetryAfter()));
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+			} else if (exception instanceof PublishTooLargeException) {
+				response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exception.getMessage());
+			} else if (exception instanceof ContentRejectedException) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, exception.getMessage());
+			} else {
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exception.getMessage());
+			}
 		} catch (IOException e) {
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			if (LOGGER.isErrorEnabled()) {
@@ -151,7 +651,7 @@ public class FileUploadServlet extends HttpServlet {
 	 * 
 	 * @param files
 	 */
-	private void closeAll(Map<String, InputStream> files) {
+	protected void closeAll(Map<String, InputStream> files) {
 		if (files != null) {
 			for (String file : files.keySet()) {
 				InputStream steam = files.get(file);
@@ -172,11 +672,11 @@ public class FileUploadServlet extends HttpServlet {
 	}
 
 	/**
-	 * create servlet file upload 
-	 * 
+	 * create the factory used to buffer uploaded parts
+	 *
 	 * @return
 	 */
-	protected ServletFileUpload createServletFileUpload() {
+	protected DiskFileItemFactory createDiskFileItemFactory() {
 		DiskFileItemFactory diskFileItemFactory = new DiskFileItemFactory();
         String tempPath = System.getProperty("java.io.tmpdir");
         if (tempPath == null) {
@@ -187,8 +687,7 @@ public class FileUploadServlet extends HttpServlet {
             repoPath.mkdirs();
         }
 		diskFileItemFactory.setRepository(repoPath);
-		ServletFileUpload toRet = new ServletFileUpload(diskFileItemFactory);
-		return toRet;
+		return diskFileItemFactory;
 	}
 
 	/**
@@ -196,31 +695,192 @@ public class FileUploadServlet extends HttpServlet {
 	 * 
 	 * @param parameters
 	 * @param files
+	 * @return the result of the publish
 	 * @throws IOException
 	 */
-	protected void deployFiles(Map<String, String> parameters, Map<String, InputStream> files) throws IOException {
+	protected PublishResult deployFiles(Map<String, String> parameters, Map<String, InputStream> files) throws IOException {
+		return deployFiles(parameters, files, new PublishedChangeSet(), null);
+	}
+
+	/**
+	 * write files to targets, adding them to a change set that may already contain files written while the
+	 * request was being streamed
+	 *
+	 * @param parameters
+	 * @param files
+	 * @param changeSet
+	 * @param transaction
+	 * 			the transaction files were already written in, or null to start a new one
+	 * @return the result of the publish, with the id it can be tracked by once recorded for post processing
+	 * @throws IOException
+	 */
+	protected PublishResult deployFiles(Map<String, String> parameters, Map<String, InputStream> files,
+			PublishedChangeSet changeSet, PublishTransaction transaction) throws IOException {
 		String paramTarget = parameters.get(PARAM_TARGET);
 		PublishingTarget target = this.targetManager.getTarget(paramTarget);
 		if (target != null) {
-			PublishedChangeSet changeSet = new PublishedChangeSet();
-			// TODO: support pre-processors in future
-			writeToTarget(parameters, files, target, changeSet);
-			deleteFromTarget(parameters, target, changeSet);
-			// run through post processors
-			if (target.isDefaultProcessingEnabled()) {
+			if (transaction == null) {
+				transaction = beginTransaction(parameters, target);
+			}
+			PublishResult result = transaction.getResult();
+			try {
+				boolean deduplicate = target.getBooleanParameter(CONFIG_DEDUPLICATE, false);
+				boolean unchanged;
+				QueuedPublish publish = null;
 				try {
-					target.getDefaultPostProcessor().doProcess(changeSet, parameters, target);
-				} catch (PublishingException e) {
-					LOGGER.error("Error while running a default post processor", e);
+					writeToTarget(parameters, files, target, changeSet, transaction);
+					// files whose metadata changed are still changed, even if their content wasn't
+					changeSet.getUpdatedFiles().addAll(transaction.getUnchangedContentWithChangedMetadata());
+					deleteFromTarget(parameters, target, changeSet, transaction);
+					unchanged = deduplicate && isEmpty(changeSet);
+					// journaled before the commit, so a crash while committing still gets it post processed
+					if (publishQueue != null && !unchanged) {
+						publish = publishQueue.prepare(target, parameters, changeSet, result,
+								isAsyncPostProcessing(target) || publishQueue.isJournaled(target));
+					}
+					transaction.commit();
+				} catch (IOException | RuntimeException e) {
+					if (publish != null) {
+						publishQueue.cancel(target, publish);
+					}
+					throw e;
+				} finally {
+					transaction.rollback();
+				}
+				result.written();
+				if (deduplicate) {
+					target.getHashIndex(transaction.getRoot()).update(transaction.getDigests(),
+							transaction.getDeletedFiles());
+				}
+				if (unchanged) {
+					if (LOGGER.isInfoEnabled()) {
+						LOGGER.info("All files published to " + target.getName() + " are unchanged, skipping post processing");
+					}
+					result.processingFinished(0, null);
+					return result;
+				}
+				// run through post processors, synchronous post processing keeps the target's turn to write
+				if (publish != null) {
+					if (isAsyncPostProcessing(target)) {
+						publishQueue.submit(target, publish);
+					} else {
+						publishQueue.processNow(target, publish);
+					}
+				} else {
+					doPostProcessing(changeSet, parameters, target, result);
 				}
+				return result;
+			} finally {
+				transaction.close();
 			}
-			doPostProcessing(changeSet, parameters, target);
 		} else {
 			throw new IOException("No configuration exists for " + paramTarget);
 		}
 			
 	}
 	
+	/**
+	 * check if the change sets of a target are post processed in the background, once the publish is acknowledged
+	 *
+	 * @param target
+	 * @return
+	 */
+	protected boolean isAsyncPostProcessing(PublishingTarget target) {
+		return publishQueue.isAsync(target);
+	}
+
+	/**
+	 * start the transaction the files of a publish are written in, once the target admits the publish. Targets
+	 * configured as transactional stage all changes until the whole publish has been received. The transaction
+	 * holds the target's admission until it's closed.
+	 *
+	 * @param parameters
+	 * @param target
+	 * @return
+	 * @throws PublishRejectedException
+	 * 			if the target is too busy to accept the publish
+	 * @throws ContentRejectedException
+	 * 			if the site of the publish is invalid
+	 */
+	protected PublishTransaction beginTransaction(Map<String, String> parameters, PublishingTarget target)
+			throws PublishRejectedException, ContentRejectedException {
+		long start = System.currentTimeMillis();
+		// resolved before taking a turn, so an invalid site doesn't keep it
+		File root = target.getPathResolver(parameters.get(PARAM_SITE)).getRoot().toFile();
+		final PublishAdmission admission = target.getAdmission();
+		admission.acquire();
+		PublishTransaction transaction = createTransaction(root, target);
+		transaction.onClose(new Runnable() {
+
+			@Override
+			public void run() {
+				admission.release();
+			}
+
+		});
+		PathLocks pathLocks = target.getPathLocks();
+		if (pathLocks != null) {
+			transaction.usePathLocks(pathLocks.newHolder(transaction.getRoot().getPath(),
+					target.getLongParameter(PublishingTarget.CONFIG_ADMISSION_TIMEOUT, 60000)));
+			try {
+				// lock what's known up front in one go, the whole change set when the request was buffered. Files
+				// found later while streaming are locked as they're written
+				transaction.lockPaths(getLocations(parameters), getDeletedLocations(parameters));
+			} catch (PublishRejectedException e) {
+				transaction.close();
+				throw e;
+			}
+		}
+		transaction.getResult().admitted(System.currentTimeMillis() - start);
+		return transaction;
+	}
+
+	/**
+	 * get the locations of the files of a publish given in the request parameters
+	 *
+	 * @param parameters
+	 * @return
+	 */
+	private List<String> getLocations(Map<String, String> parameters) {
+		List<String> locations = new ArrayList<String>();
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			if (parameter.getKey().startsWith("contentLocation") && parameter.getValue() != null) {
+				locations.add(parameter.getValue());
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * get the locations of the files deleted by a publish
+	 *
+	 * @param parameters
+	 * @return
+	 */
+	private List<String> getDeletedLocations(Map<String, String> parameters) {
+		List<String> deletedLocations = new ArrayList<String>();
+		String deletedList = parameters.get(PARAM_DELETED_FILES);
+		if (deletedList != null) {
+			StringTokenizer tokens = new StringTokenizer(deletedList, FILES_SEPARATOR);
+			while (tokens.hasMoreTokens()) {
+				deletedLocations.add(StringUtils.trimWhitespace(tokens.nextToken()));
+			}
+		}
+		return deletedLocations;
+	}
+
+	private PublishTransaction createTransaction(File root, PublishingTarget target) {
+		PublishTransaction transaction;
+		if (target.getBooleanParameter(CONFIG_TRANSACTIONAL, false)) {
+			transaction = PublishTransaction.staged(root);
+		} else {
+			transaction = PublishTransaction.direct(root);
+		}
+		transaction.useDeleter(target.getTreeDeleter());
+		transaction.useResult(new PublishResult(target.getName()));
+		return transaction;
+	}
+
 	/**
 	 * create or update files to target 
 	 * 
@@ -228,72 +888,313 @@ public class FileUploadServlet extends HttpServlet {
 	 * @param files
 	 * @param target
 	 * @param changeSet 
+	 * @param transaction
 	 * @throws IOException 
 	 */
 	protected void writeToTarget(Map<String, String> parameters, Map<String, InputStream> files, 
-			PublishingTarget target, PublishedChangeSet changeSet) throws IOException {
-		List<String> createdFiles = new ArrayList<String>(files.size());
-		List<String> updatedFiles = new ArrayList<String>(files.size());
-        String site = parameters.get(PARAM_SITE);
+			PublishingTarget target, PublishedChangeSet changeSet, PublishTransaction transaction) throws IOException {
+		if (changeSet.getCreatedFiles() == null) {
+			changeSet.setCreatedFiles(new ArrayList<String>(files.size()));
+		}
+		if (changeSet.getUpdatedFiles() == null) {
+			changeSet.setUpdatedFiles(new ArrayList<String>(files.size()));
+		}
 		// write files to the target path
-		for (Map.Entry<String, InputStream> entry : files.entrySet()) {
-			String locationParamName = entry.getKey().replace("File", "Location").replace("metadata", "content");
-            boolean isMetadata = entry.getKey().startsWith("metadata");
-			String contentLocation = parameters.get(locationParamName);
-            StringBuilder sbFullPath = new StringBuilder(target.getParameter(CONFIG_ROOT));
-            sbFullPath.append(File.separator);
-            if (isMetadata)
-                sbFullPath.append(target.getParameter(CONFIG_METADATA_FOLDER));
-            else
-                sbFullPath.append(target.getParameter(CONFIG_CONTENT_FOLDER));
-            sbFullPath.append(contentLocation);
-            if (isMetadata) {
-                sbFullPath.append(CONFIG_METADATA_FILENAME_SUFFIX);
-            }
-			//String fullPath = target.getParameter(CONFIG_ROOT) + "/" + contentLocation;
-			if (LOGGER.isInfoEnabled()) {
-				LOGGER.info("writing " + sbFullPath.toString());
-			}
-            String fullPath = sbFullPath.toString();
-            if (StringUtils.hasText(site)) {
-                fullPath = fullPath.replaceAll(CONFIG_MULTI_TENANCY_VARIABLE, site);
-            }
-            File file = new File(fullPath);
-			OutputStream outputStream = null;
+		if (target.getWriterThreads() > 1 && files.size() > 1) {
+			writeInParallel(parameters, files, target, changeSet, transaction);
+		} else {
+			for (Map.Entry<String, InputStream> entry : files.entrySet()) {
+				writeFile(entry.getKey(), entry.getValue(), parameters, target, changeSet, transaction);
+			}
+		}
+	}
+
+	/**
+	 * write files concurrently using the target's writer pool. Created and updated files are added to the change
+	 * set in the same order as the files map. Once a write fails the writes that haven't started are skipped and the
+	 * first error is thrown after all running writes have finished.
+	 *
+	 * @param parameters
+	 * @param files
+	 * @param target
+	 * @param changeSet
+	 * @param transaction
+	 * @throws IOException
+	 */
+	protected void writeInParallel(final Map<String, String> parameters, Map<String, InputStream> files,
+			final PublishingTarget target, PublishedChangeSet changeSet, final PublishTransaction transaction)
+			throws IOException {
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		List<Future<PublishedChangeSet>> writes = new ArrayList<Future<PublishedChangeSet>>(files.size());
+		for (final Map.Entry<String, InputStream> entry : files.entrySet()) {
+			writes.add(target.getWriterExecutor().submit(new Callable<PublishedChangeSet>() {
+				@Override
+				public PublishedChangeSet call() throws Exception {
+					PublishedChangeSet fileChangeSet = new PublishedChangeSet(new ArrayList<String>(1),
+							new ArrayList<String>(1), null);
+					if (failed.get()) {
+						IOUtils.closeQuietly(entry.getValue());
+						return fileChangeSet;
+					}
+					try {
+						writeFile(entry.getKey(), entry.getValue(), parameters, target, fileChangeSet, transaction);
+					} catch (IOException | RuntimeException e) {
+						failed.set(true);
+						throw e;
+					}
+					return fileChangeSet;
+				}
+			}));
+		}
+
+		IOException error = null;
+		for (Future<PublishedChangeSet> write : writes) {
 			try {
-				// create new file if doesn't exist
-				boolean created = false;
-				if (!file.exists()) {
-					file.getParentFile().mkdirs();
-					file.createNewFile();
-					created = true;
+				PublishedChangeSet fileChangeSet = write.get();
+				changeSet.getCreatedFiles().addAll(fileChangeSet.getCreatedFiles());
+				changeSet.getUpdatedFiles().addAll(fileChangeSet.getUpdatedFiles());
+			} catch (ExecutionException e) {
+				if (error == null) {
+					error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
 				}
-				outputStream = new FileOutputStream(file);
-				IOUtils.copy(entry.getValue(), outputStream);
-                if (!isMetadata) {
-                    if (created) {
-                        createdFiles.add(contentLocation);
-                    } else {
-                        updatedFiles.add(contentLocation);
-                    }
-                }
-			} catch (FileNotFoundException e) {
-				if (LOGGER.isErrorEnabled()) { 
-					LOGGER.error("Error: not able to open output stream for file " + contentLocation + " for " + target.getName());
+			} catch (InterruptedException e) {
+				failed.set(true);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing files for " + target.getName());
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * create or update a single file in the target, closing the given stream once written
+	 *
+	 * @param fieldName
+	 * 			the name of the request part the file was sent in
+	 * @param content
+	 * @param parameters
+	 * @param target
+	 * @param changeSet
+	 * @param transaction
+	 * @throws IOException
+	 */
+	protected void writeFile(String fieldName, InputStream content, Map<String, String> parameters,
+			PublishingTarget target, PublishedChangeSet changeSet, PublishTransaction transaction) throws IOException {
+		String locationParamName = getLocationParamName(fieldName);
+        boolean isMetadata = fieldName.startsWith("metadata");
+		String contentLocation = parameters.get(locationParamName);
+		TargetPathResolver pathResolver = target.getPathResolver(parameters.get(PARAM_SITE));
+		PublishResult result = transaction.getResult();
+		long start = System.currentTimeMillis();
+		File file;
+		try {
+			file = (isMetadata? pathResolver.resolveMetadata(contentLocation)
+					: pathResolver.resolveContent(contentLocation)).toFile();
+			transaction.lockPaths(Collections.singletonList(contentLocation), Collections.<String>emptyList());
+		} catch (IOException e) {
+			IOUtils.closeQuietly(content);
+			result.fileWritten(contentLocation, isMetadata, e instanceof ContentRejectedException?
+					FileStatus.REJECTED : FileStatus.FAILED, 0, System.currentTimeMillis() - start, e.getMessage());
+			throw e;
+		}
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info("writing " + file);
+		}
+		OutputStream outputStream = null;
+		InputStream processedContent = content;
+		File pendingFile = null;
+		Semaphore openStreamPermits = target.getOpenStreamPermits();
+		if (openStreamPermits != null) {
+			try {
+				openStreamPermits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				IOUtils.closeQuietly(content);
+				throw new InterruptedIOException("Interrupted while waiting to write " + contentLocation);
+			}
+		}
+		try {
+			String path = isMetadata? contentLocation + CONFIG_METADATA_FILENAME_SUFFIX : contentLocation;
+			processedContent = decodePart(fieldName, parameters, content);
+			processedContent = doPreProcessing(fieldName, path, processedContent, parameters, target);
+			boolean created = !file.exists();
+			long previousSize = file.length();
+			long previousLastModified = file.lastModified();
+			MessageDigest digest = null;
+			String checksum = null;
+			boolean skipWrite = false;
+			boolean keepIfChanged = false;
+			if (target.getBooleanParameter(CONFIG_DEDUPLICATE, false)) {
+				digest = createDigest();
+				processedContent = new DigestInputStream(processedContent, digest);
+				if (!created && target.getBooleanParameter(CONFIG_DEDUPLICATE_SKIP_WRITE, false)) {
+					// a file sent with the digest it already has in the index isn't written at all, one sent
+					// without it is written aside and only replaces the file if it's different
+					checksum = getChecksum(fieldName, parameters);
+					skipWrite = checksum != null && target.getHashIndex(transaction.getRoot()).isUnchanged(file,
+							previousSize, previousLastModified, checksum);
+					keepIfChanged = !skipWrite;
 				}
-				throw e;
-			} catch (IOException e) {
-				if (LOGGER.isErrorEnabled()) {
-					LOGGER.error("Error: not able to write file " + contentLocation + " for " + target.getName());
+			}
+			if (skipWrite) {
+				outputStream = new NullOutputStream();
+			} else if (keepIfChanged || !CollectionUtils.isEmpty(target.getPreProcessors())) {
+				// pre-processors can reject a file once it's fully read, so it's only put in place after a clean end
+				outputStream = transaction.openPendingStream(file);
+				pendingFile = file;
+			} else {
+				outputStream = transaction.openStream(file);
+			}
+			long bytes = IOUtils.copyLarge(processedContent, outputStream);
+			outputStream.close();
+			boolean unchanged = false;
+			if (digest != null) {
+				String hash = Hex.encodeHexString(digest.digest());
+				if (skipWrite && !hash.equals(checksum)) {
+					throw new ContentRejectedException("Checksum mismatch for " + path + ": expected " + checksum +
+							", received " + hash);
 				}
-				throw e;
-			} finally {
-				IOUtils.closeQuietly(entry.getValue());
-				IOUtils.closeQuietly(outputStream);
+				transaction.setDigest(file, hash);
+				unchanged = !created && target.getHashIndex(transaction.getRoot()).isUnchanged(file, previousSize,
+						previousLastModified, hash);
+			}
+			if (pendingFile != null) {
+				if (unchanged && keepIfChanged) {
+					transaction.discard(file);
+				} else {
+					transaction.keep(file);
+				}
+				pendingFile = null;
+			}
+			if (unchanged) {
+				if (LOGGER.isDebugEnabled()) {
+					LOGGER.debug(path + " is unchanged, leaving it out of the change set");
+				}
+				if (!isMetadata) {
+					transaction.contentUnchanged(contentLocation);
+				}
+			} else if (!isMetadata) {
+                if (created) {
+                    changeSet.getCreatedFiles().add(contentLocation);
+                } else {
+                    changeSet.getUpdatedFiles().add(contentLocation);
+                }
+            } else {
+				transaction.metadataChanged(contentLocation);
+			}
+			result.fileWritten(contentLocation, isMetadata, unchanged? FileStatus.UNCHANGED
+					: created? FileStatus.CREATED : FileStatus.UPDATED, bytes, System.currentTimeMillis() - start, null);
+		} catch (ContentRejectedException e) {
+			if (LOGGER.isWarnEnabled()) {
+				LOGGER.warn("File " + contentLocation + " for " + target.getName() + " rejected: " + e.getMessage());
+			}
+			result.fileWritten(contentLocation, isMetadata, FileStatus.REJECTED, 0,
+					System.currentTimeMillis() - start, e.getMessage());
+			throw e;
+		} catch (FileNotFoundException e) {
+			if (LOGGER.isErrorEnabled()) { 
+				LOGGER.error("Error: not able to open output stream for file " + contentLocation + " for " + target.getName());
+			}
+			result.fileWritten(contentLocation, isMetadata, FileStatus.FAILED, 0,
+					System.currentTimeMillis() - start, e.getMessage());
+			throw e;
+		} catch (IOException e) {
+			if (LOGGER.isErrorEnabled()) {
+				LOGGER.error("Error: not able to write file " + contentLocation + " for " + target.getName());
+			}
+			result.fileWritten(contentLocation, isMetadata, FileStatus.FAILED, 0,
+					System.currentTimeMillis() - start, e.getMessage());
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(processedContent);
+			IOUtils.closeQuietly(content);
+			IOUtils.closeQuietly(outputStream);
+			if (pendingFile != null) {
+				transaction.discard(pendingFile);
+			}
+			if (openStreamPermits != null) {
+				openStreamPermits.release();
+			}
+		}
+	}
+
+	private boolean isEmpty(PublishedChangeSet changeSet) {
+		return CollectionUtils.isEmpty(changeSet.getCreatedFiles()) && CollectionUtils.isEmpty(changeSet.getUpdatedFiles())
+				&& CollectionUtils.isEmpty(changeSet.getDeletedFiles());
+	}
+
+	/**
+	 * get the digest sent for a file part, in the parameter named after the part with Checksum in place of File
+	 * (contentChecksum1 for contentFile1)
+	 *
+	 * @param fieldName
+	 * @param parameters
+	 * @return the digest in lower case, or null if none was sent
+	 */
+	private String getChecksum(String fieldName, Map<String, String> parameters) {
+		String checksum = parameters.get(fieldName.replace("File", "Checksum"));
+		return StringUtils.hasText(checksum)? checksum.trim().toLowerCase(Locale.ROOT) : null;
+	}
+
+	protected MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(DEDUPLICATION_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest algorithm " + DEDUPLICATION_ALGORITHM + " not available", e);
+		}
+	}
+
+	/**
+	 * run a file through the pre-processors of the target before it is written
+	 *
+	 * @param fieldName
+	 * @param path
+	 * 			path of the file in the content or metadata folder
+	 * @param content
+	 * @param parameters
+	 * @param target
+	 * @return the content to write
+	 * @throws IOException
+	 * 			if a pre-processor rejected the file
+	 */
+	protected InputStream doPreProcessing(String fieldName, String path, InputStream content,
+			Map<String, String> parameters, PublishingTarget target) throws IOException {
+		List<PublishingPreProcessor> preProcessors = target.getPreProcessors();
+		if (preProcessors != null) {
+			for (PublishingPreProcessor preProcessor : preProcessors) {
+				content = preProcessor.process(fieldName, path, content, parameters, target);
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * get the parameters in the query string of a request. Unlike {@link HttpServletRequest#getParameter(String)}
+	 * this never reads the request body, which is left for the caller to read.
+	 *
+	 * @param request
+	 * @return the parameters by name
+	 */
+	protected Map<String, String> getQueryParameters(HttpServletRequest request) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (request.getQueryString() != null) {
+			for (NameValuePair parameter : URLEncodedUtils.parse(request.getQueryString(), Charset.forName("UTF-8"))) {
+				parameters.put(parameter.getName(), parameter.getValue());
 			}
 		}
-		changeSet.setCreatedFiles(createdFiles);
-		changeSet.setUpdatedFiles(updatedFiles);
+		return parameters;
+	}
+
+	/**
+	 * get the name of the parameter holding the location of a file part
+	 *
+	 * @param fieldName
+	 * @return
+	 */
+	protected String getLocationParamName(String fieldName) {
+		return fieldName.replace("File", "Location").replace("metadata", "content");
 	}
 
 	/**
@@ -301,49 +1202,43 @@ public class FileUploadServlet extends HttpServlet {
 	 * @param parameters
 	 * @param target
 	 * @param changeSet
+	 * @param transaction
 	 */
-	protected void deleteFromTarget(Map<String, String> parameters, PublishingTarget target, PublishedChangeSet changeSet) {
+	protected void deleteFromTarget(Map<String, String> parameters, PublishingTarget target, PublishedChangeSet changeSet,
+			PublishTransaction transaction) throws IOException {
 		String deletedList = parameters.get(PARAM_DELETED_FILES);
-        String site = parameters.get(PARAM_SITE);
+		TargetPathResolver pathResolver = target.getPathResolver(parameters.get(PARAM_SITE));
 		if (deletedList != null) {
+			transaction.lockPaths(Collections.<String>emptyList(), getDeletedLocations(parameters));
 			StringTokenizer tokens = new StringTokenizer(deletedList, FILES_SEPARATOR);
 			List<String> deletedFiles = new ArrayList<String>(tokens.countTokens());
 			while (tokens.hasMoreElements()) {
 				String contentLocation = tokens.nextToken();
 				contentLocation = StringUtils.trimWhitespace(contentLocation);
-				String root = target.getParameter(CONFIG_ROOT);
-				String fullPath = root + File.separator + target.getParameter(CONFIG_CONTENT_FOLDER) + contentLocation;
+				File file = pathResolver.resolveContent(contentLocation).toFile();
+				String fullPath = file.getPath();
 				if (LOGGER.isInfoEnabled()) {
 					LOGGER.info("deleting " + fullPath);
 				}
-                if (StringUtils.hasText(site)) {
-                    fullPath = fullPath.replaceAll(CONFIG_MULTI_TENANCY_VARIABLE, site);
-                }
-				File file = new File(fullPath);
 				if (file.exists()) {
-					if (file.isFile()) {
-						file.delete();
-						deletedFiles.add(contentLocation);
-					} else {
-						deleteChildren(file.list(), fullPath, contentLocation, deletedFiles);
-						file.delete();
+					int listed = deletedFiles.size();
+					TreeDeleter.list(file.toPath(), contentLocation, deletedFiles);
+					for (String deletedFile : deletedFiles.subList(listed, deletedFiles.size())) {
+						transaction.getResult().fileDeleted(deletedFile);
 					}
+					transaction.delete(file);
 				} else {
 					if (LOGGER.isDebugEnabled()) {
 						LOGGER.debug(fullPath + " is not deleted since it does not exsit.");
 					}
 				}
-				fullPath = root + '/' + target.getParameter(CONFIG_METADATA_FOLDER) +
-				           contentLocation + CONFIG_METADATA_FILENAME_SUFFIX;
+				file = pathResolver.resolveMetadata(contentLocation).toFile();
+				fullPath = file.getPath();
 				if (LOGGER.isDebugEnabled()) {
 					LOGGER.debug("deleting " + fullPath);
 				}
-                if (StringUtils.hasText(site)) {
-                    fullPath = fullPath.replaceAll(CONFIG_MULTI_TENANCY_VARIABLE, site);
-                }
-				file = new File(fullPath);
 				if (file.exists()) {
-					file.delete();
+					transaction.delete(file);
 				}
 				else if (LOGGER.isDebugEnabled()) {
 					LOGGER.debug(fullPath + " is not deleted since it does not exsit.");
@@ -353,51 +1248,43 @@ public class FileUploadServlet extends HttpServlet {
 		} 
 	}
 
-	/**
-	 * delete child items
-	 * 
-	 * @param children
-	 * @param parentPath
-	 * @param deletedFiles
-	 */
-	private void deleteChildren(String[] children, String parentFullPath, String parentPath, List<String> deletedFiles) {
-		if (children != null) {
-			for (String child : children) {
-				String childFullPath = parentFullPath + File.separator + child;
-				String childPath = parentPath + File.separator + child;
-				File file = new File(childFullPath);
-				if (file.isFile()) {
-					file.delete();
-					deletedFiles.add(childPath);
-				} else {
-					deleteChildren(file.list(), childFullPath, childPath, deletedFiles);
-					file.delete();
-				}
-			}
-		}
-	}
-
 	/**
 	 * run published files through the post processors
 	 * 
 	 * @param changeSet
 	 * @param parameters 
 	 * @param target
+	 * @param result
+	 * 			records the time and outcome of each post processor
 	 */
-	protected void doPostProcessing(PublishedChangeSet changeSet, Map<String, String> parameters, PublishingTarget target) {
-		List<PublishingProcessor> postProcessors = target.getPostProcessors();
-		if (postProcessors != null) {
-			try {
-				for (PublishingProcessor processor : postProcessors) {
-					if (LOGGER.isDebugEnabled()) {
-						LOGGER.debug("Running files through " + processor.getName());
-					}
-					processor.doProcess(changeSet, parameters, target);
+	protected void doPostProcessing(PublishedChangeSet changeSet, Map<String, String> parameters, PublishingTarget target,
+			final PublishResult result) {
+		long start = System.currentTimeMillis();
+		String error = null;
+		result.processingStarted(0);
+		try {
+			postProcessorChain.process(changeSet, parameters, target, new PostProcessorChain.ProgressListener() {
+
+				@Override
+				public boolean isCompleted(String processorKey) {
+					return false;
 				}
-			} catch (Exception e) {
-                LOGGER.error("Error while running a post processor", e);
-			}
+
+				@Override
+				public void processorCompleted(String processorKey) {
+				}
+
+				@Override
+				public void processorFinished(String processorKey, long time, Throwable error) {
+					result.processorFinished(processorKey, time, error);
+				}
+
+			});
+		} catch (PublishingException e) {
+            LOGGER.error("Error while running a post processor", e);
+			error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
 		}
+		result.processingFinished(System.currentTimeMillis() - start, error);
 	}
 
 	/**
@@ -414,4 +1301,45 @@ public class FileUploadServlet extends HttpServlet {
 		this.targetManager = targetManager;
 	}
 
+	/**
+	 * request whose body is read through a wrapping stream
+	 */
+	private abstract static class BodyRequestWrapper extends HttpServletRequestWrapper {
+
+		private ServletInputStream body;
+
+		BodyRequestWrapper(HttpServletRequest request) {
+			super(request);
+		}
+
+		protected abstract InputStream wrap(InputStream body) throws IOException;
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (body == null) {
+				final InputStream in = wrap(super.getInputStream());
+				body = new ServletInputStream() {
+
+					@Override
+					public int read() throws IOException {
+						return in.read();
+					}
+
+					@Override
+					public int read(byte[] buffer, int offset, int length) throws IOException {
+						return in.read(buffer, offset, length);
+					}
+
+					@Override
+					public void close() throws IOException {
+						in.close();
+					}
+
+				};
+			}
+			return body;
+		}
+
+	}
+
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+import org.craftercms.cstudio.publishing.target.TargetHashIndex;
+import org.craftercms.cstudio.publishing.target.TargetPathResolver;
+
+/**
+ * <p>Compares a manifest of the files a client has with the files of a target, so the client only needs to publish
+ * the files that are missing or different. The password, target and siteId parameters go in the query string and the
+ * manifest is the request body, one file per line with the MD5 digest of its contents and its location separated by
+ * whitespace, like the output of md5sum. The response lists the locations of the files of the manifest that the
+ * target doesn't have with the same digest, one per line.</p>
+ * <p>Digests come from the hash index of the target, which publishes keep up to date when deduplicate is enabled.
+ * Files that aren't indexed yet, or were changed since, are hashed once and added to the index, so comparing a whole
+ * site after restoring a target from a backup only reads it the first time.</p>
+ */
+public class ManifestDiffServlet extends FileUploadServlet {
+
+    private static final long serialVersionUID = -3472925305716264915L;
+
+    private static final Log LOGGER = LogFactory.getLog(ManifestDiffServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        doDiff(request, response);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        doDiff(request, response);
+    }
+
+    protected void doDiff(HttpServletRequest request, HttpServletResponse response) {
+        Map<String, String> parameters = getQueryParameters(request);
+        try {
+            if (!isAuthenticated(parameters)) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Illegal manifest diff request received. Password parameter does not match configured password for deployer.");
+                }
+                return;
+            }
+            PublishingTarget target = targetManager.getTarget(parameters.get(PARAM_TARGET));
+            if (target == null) {
+                throw new IOException("No configuration exists for " + parameters.get(PARAM_TARGET));
+            }
+            UploadLimits limits = createUploadLimits();
+            limits.apply(target);
+            limits.checkContentLength(request.getContentLength());
+            InputStream manifest = limitRequest(decodeRequest(request), limits).getInputStream();
+            List<String> changed = diff(manifest, target, target.getPathResolver(parameters.get(PARAM_SITE)));
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            PrintWriter writer = response.getWriter();
+            for (String location : changed) {
+                writer.println(location);
+            }
+            writer.flush();
+        } catch (Exception e) {
+            handleErrorCase(null, response, e);
+        }
+    }
+
+    /**
+     * find the files of a manifest that are missing or different in a target
+     *
+     * @param manifest
+     * @param target
+     * @param pathResolver
+     * @return the locations of the files, in the order of the manifest
+     * @throws IOException
+     */
+    protected List<String> diff(InputStream manifest, PublishingTarget target, TargetPathResolver pathResolver)
+            throws IOException {
+        TargetHashIndex hashIndex = target.getHashIndex(pathResolver.getRoot().toFile());
+        List<String> changed = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8));
+        int count = 0;
+        int hashed = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = StringUtils.split(line, null, 2);
+            if (fields.length != 2) {
+                throw new ContentRejectedException("Invalid manifest line " + line +
+                                                   ", expected the digest and location of a file");
+            }
+            // md5sum marks files hashed in binary mode with a *
+            String location = StringUtils.removeStart(fields[1].trim(), "*");
+            File file = pathResolver.resolveContent(location).toFile();
+            count++;
+            if (!file.isFile()) {
+                changed.add(location);
+                continue;
+            }
+            String digest = hashIndex.getDigest(file);
+            if (digest == null) {
+                try {
+                    digest = hash(file, hashIndex);
+                    hashed++;
+                } catch (FileNotFoundException e) {
+                    // deleted by a publish while the manifest was read
+                }
+            }
+            if (digest == null || !digest.equalsIgnoreCase(fields[0])) {
+                changed.add(location);
+            }
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(changed.size() + " of " + count + " files in manifest for " + target.getName() +
+                        " are missing or different, " + hashed + " files were hashed");
+        }
+        return changed;
+    }
+
+    /**
+     * compute the digest of a file and index it, unless it changes while it's read
+     *
+     * @return the digest, or null if the file changed while it was read
+     */
+    private String hash(File file, TargetHashIndex hashIndex) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MessageDigest digest = createDigest();
+        InputStream in = new DigestInputStream(DeferredInputStream.of(file), digest);
+        try {
+            IOUtils.copy(in, new NullOutputStream());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (file.length() != size || file.lastModified() != lastModified) {
+            return null;
+        }
+        String hash = Hex.encodeHexString(digest.digest());
+        hashIndex.index(file, size, lastModified, hash);
+        return hash;
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.queue.PublishQueue;
+import org.craftercms.cstudio.publishing.queue.QueuedPublish;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * <p>Reports the post processing status of a publish queued by the file upload servlet, along with its result. With
+ * the wait parameter the request is held until post processing finishes or the given number of milliseconds
+ * elapse. Requests need the deployer password, like publishes.</p>
+ */
+public class PublishStatusServlet extends HttpServlet {
+
+    private static final Log LOGGER = LogFactory.getLog(PublishStatusServlet.class);
+
+    public static final String PARAM_PASSWORD = "password";
+    public static final String PARAM_ID = "id";
+    public static final String PARAM_WAIT = "wait";
+
+    /**
+     * <p>Queue of publishes waiting for post processing</p>
+     */
+    protected PublishQueue publishQueue;
+
+    /**
+     * <p>Max time a request can wait for post processing to finish</p>
+     */
+    protected long maxWait = 60000;
+
+    /**
+     * <p>Deployer password</p>
+     */
+    private String password;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String id = request.getParameter(PARAM_ID);
+        long wait = Math.min(NumberUtils.toLong(request.getParameter(PARAM_WAIT), 0), maxWait);
+
+        response.setContentType(MimeTypeUtils.APPLICATION_JSON_VALUE);
+        PrintWriter responseWriter = response.getWriter();
+
+        String password = request.getParameter(PARAM_PASSWORD);
+        if (password == null || !password.equalsIgnoreCase(this.password)) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            responseWriter.println("{ \"message\": \"Password parameter does not match configured password for " +
+                                   "deployer\" }");
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Illegal publish status request received. Password parameter does not match configured password for deployer.");
+            }
+            responseWriter.flush();
+            return;
+        }
+
+        QueuedPublish publish = StringUtils.isNotEmpty(id)? publishQueue.getPublish(id) : null;
+        if (publish == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            responseWriter.println("{ \"message\": \"No publish found by id: " + StringEscapeUtils.escapeJson(id) +
+                                   "\" }");
+        } else {
+            if (wait > 0) {
+                try {
+                    publish.awaitCompletion(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.debug("Interrupted while waiting for publish " + id);
+                }
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            responseWriter.println(toJson(publish));
+        }
+
+        responseWriter.flush();
+    }
+
+    protected String toJson(QueuedPublish publish) {
+        StringBuilder json = new StringBuilder("{ ");
+        json.append("\"id\": \"").append(publish.getId()).append("\", ");
+        json.append("\"target\": \"").append(StringEscapeUtils.escapeJson(publish.getTargetName())).append("\", ");
+        json.append("\"status\": \"").append(publish.getStatus()).append("\", ");
+        json.append("\"submitted\": ").append(publish.getSubmittedTime()).append(", ");
+        json.append("\"started\": ").append(publish.getStartedTime()).append(", ");
+        json.append("\"finished\": ").append(publish.getFinishedTime());
+        if (publish.getError() != null) {
+            json.append(", \"error\": \"").append(StringEscapeUtils.escapeJson(publish.getError())).append("\"");
+        }
+        json.append(", \"result\": ").append(publish.getResult().toJson());
+        json.append(" }");
+        return json.toString();
+    }
+
+    /**
+     * <p>Set the queue of publishes waiting for post processing</p>
+     * @param publishQueue
+     *          the queue to set
+     */
+    public void setPublishQueue(PublishQueue publishQueue) {
+        this.publishQueue = publishQueue;
+    }
+
+    /**
+     * <p>Set the max time a request can wait for post processing to finish</p>
+     * @param maxWait
+     *          max wait in milliseconds
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * <p>Set the deployer password</p>
+     * @param password
+     *          a password to set
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.servlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.craftercms.cstudio.publishing.exception.PublishTooLargeException;
+import org.craftercms.cstudio.publishing.target.PublishingTarget;
+
+/**
+ * Tracks the number of files and bytes received by a publish request against the limits of the receiver, replaced
+ * by those of the target once it's known. Going over a limit fails the request as soon as it happens, before the
+ * rest of the request is read. The bytes of the files kept in memory are tracked too, so a request never keeps more
+ * than the size threshold in memory however many files it has.
+ */
+public class UploadLimits {
+
+    private int maxParts;
+    private long maxBytes;
+    private int sizeThreshold;
+    private int parts = 0;
+    private long bytes = 0;
+    private long declaredBytes = -1;
+    private long bufferedBytes = 0;
+
+    /**
+     * @param maxParts
+     *          max number of files, 0 for no limit
+     * @param maxBytes
+     *          max request size in bytes, 0 for no limit
+     * @param sizeThreshold
+     *          bytes of the files of the request kept in memory, the rest are spooled to disk
+     */
+    public UploadLimits(int maxParts, long maxBytes, int sizeThreshold) {
+        this.maxParts = maxParts;
+        this.maxBytes = maxBytes;
+        this.sizeThreshold = sizeThreshold;
+    }
+
+    /**
+     * switch to the limits configured for the target, checking what was already received against them
+     *
+     * @param target
+     * @throws PublishTooLargeException
+     */
+    public void apply(PublishingTarget target) throws PublishTooLargeException {
+        maxParts = target.getIntParameter(PublishingTarget.CONFIG_MAX_PARTS, maxParts);
+        maxBytes = target.getLongParameter(PublishingTarget.CONFIG_MAX_BYTES, maxBytes);
+        sizeThreshold = target.getIntParameter(PublishingTarget.CONFIG_SIZE_THRESHOLD, sizeThreshold);
+        checkParts(parts);
+        checkBytes(Math.max(bytes, declaredBytes));
+    }
+
+    /**
+     * check the declared length of the request before reading it
+     *
+     * @param contentLength
+     *          length of the request, -1 if unknown
+     * @throws PublishTooLargeException
+     */
+    public void checkContentLength(long contentLength) throws PublishTooLargeException {
+        declaredBytes = contentLength;
+        checkBytes(contentLength);
+    }
+
+    /**
+     * count a received file
+     *
+     * @param fieldName
+     * @throws PublishTooLargeException
+     *          if the request has too many files
+     */
+    public void addPart(String fieldName) throws PublishTooLargeException {
+        checkParts(++parts);
+    }
+
+    /**
+     * count the bytes read from a stream
+     *
+     * @param in
+     * @return stream that fails once the request is over the size limit
+     */
+    public InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    addBytes(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    addBytes(read);
+                }
+                return read;
+            }
+
+        };
+    }
+
+    /**
+     * @return bytes up to which the next file can be kept in memory, what's left of the size threshold
+     */
+    public int getSizeThreshold() {
+        return (int) Math.max(0, sizeThreshold - bufferedBytes);
+    }
+
+    /**
+     * count a file kept in memory
+     *
+     * @param size
+     */
+    public void addBuffered(long size) {
+        bufferedBytes += size;
+    }
+
+    private void addBytes(long count) throws PublishTooLargeException {
+        bytes += count;
+        checkBytes(bytes);
+    }
+
+    private void checkParts(int count) throws PublishTooLargeException {
+        if (maxParts > 0 && count > maxParts) {
+            throw new PublishTooLargeException("Publish has more than the max of " + maxParts + " files");
+        }
+    }
+
+    private void checkBytes(long count) throws PublishTooLargeException {
+        if (maxBytes > 0 && count > maxBytes) {
+            throw new PublishTooLargeException("Publish is larger than the max of " + maxBytes + " bytes");
+        }
+    }
+
+}
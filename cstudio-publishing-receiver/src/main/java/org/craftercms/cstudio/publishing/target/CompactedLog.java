@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Log of the changes to a persistent index, one line per change, that is rewritten with only the current entries
+ * of the index once it grows to twice their number. Not thread safe, the index using it synchronizes the calls.
+ */
+public class CompactedLog {
+
+    private static final Log LOGGER = LogFactory.getLog(CompactedLog.class);
+
+    /** first field of the line of an entry added or replaced **/
+    public static final String ADDED = "+";
+    /** first field of the line of an entry removed **/
+    public static final String REMOVED = "-";
+    public static final String SEPARATOR = "\t";
+
+    private static final int MIN_COMPACTION_SIZE = 1000;
+
+    private final File file;
+    private final Index index;
+    private Writer log;
+    private int size;
+
+    /**
+     * index whose changes are logged
+     */
+    public interface Index {
+
+        /**
+         * apply a line of the log when it's loaded
+         *
+         * @param line
+         * @return false if the line is invalid, and was ignored
+         */
+        boolean apply(String line);
+
+        /**
+         * @return number of entries in the index
+         */
+        int size();
+
+        /**
+         * write a line for each entry of the index, when the log is compacted
+         *
+         * @param log
+         * @throws IOException
+         */
+        void writeEntries(CompactedLog log) throws IOException;
+
+    }
+
+    /**
+     * @param file
+     *          file of the log
+     * @param index
+     */
+    public CompactedLog(File file, Index index) {
+        this.file = file;
+        this.index = index;
+    }
+
+    /**
+     * apply the lines of the log to the index, if the log exists
+     *
+     * @throws IOException
+     */
+    public void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                         StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                size++;
+                if (!index.apply(line)) {
+                    LOGGER.warn("Ignoring invalid line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * write a line, joining the given fields
+     *
+     * @param fields
+     * @throws IOException
+     */
+    public void write(String... fields) throws IOException {
+        if (log == null) {
+            log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                log.write(SEPARATOR);
+            }
+            log.write(fields[i]);
+        }
+        log.write('\n');
+        size++;
+    }
+
+    /**
+     * flush the lines written, and compact the log if it's grown to twice the entries of the index
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+        if (size > Math.max(MIN_COMPACTION_SIZE, index.size() * 2)) {
+            compact();
+        }
+    }
+
+    /**
+     * rewrite the log with only the entries currently in the index
+     */
+    private void compact() throws IOException {
+        IOUtils.closeQuietly(log);
+
+        File compactedFile = new File(file.getPath() + ".tmp");
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactedFile), StandardCharsets.UTF_8));
+        size = 0;
+        try {
+            index.writeEntries(this);
+            log.close();
+        } finally {
+            IOUtils.closeQuietly(log);
+            log = null;
+        }
+        try {
+            Files.move(compactedFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compactedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Compacted " + file + " to " + size + " lines");
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.PublishRejectedException;
+
+/**
+ * Striped locks over the sections of a target, so publishes that change different sections can write at the same
+ * time while publishes that touch the same section wait on each other. A section is the first {@code depth} folders
+ * of a path, /site/website/news for /site/website/news/2017/index.xml with the default depth of 3. Sections are hashed
+ * into a fixed number of stripes, so unrelated sections can share a stripe, which only costs some concurrency.
+ *
+ * <p>Deleting a path above the sections, like /site/website, can affect any section, so it locks all the
+ * stripes.</p>
+ *
+ * <p>A publish only waits for stripes while it holds none, and then locks them in ascending order, so publishes can't
+ * deadlock. A publish whose paths are all known up front locks them in one go, and is rejected if it can't get them
+ * in time. A publish that needs more stripes once it holds some, because its paths weren't all known up front, tries
+ * them without waiting, and if another publish holds one it releases all of its stripes and waits for them again in
+ * order. It has already started writing by then, so it waits for as long as it takes instead of being rejected, and
+ * the sections it released can be changed by other publishes meanwhile.</p>
+ */
+public class PathLocks {
+
+    private static final Log LOGGER = LogFactory.getLog(PathLocks.class);
+
+    private final String targetName;
+    private final Semaphore[] stripes;
+    private final int depth;
+
+    /**
+     * @param targetName
+     * @param stripes
+     *          number of locks
+     * @param depth
+     *          number of folders in a section
+     */
+    public PathLocks(String targetName, int stripes, int depth) {
+        this.targetName = targetName;
+        this.stripes = new Semaphore[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Semaphore(1, true);
+        }
+        this.depth = Math.max(1, depth);
+    }
+
+    /**
+     * create the holder of the stripes locked by a publish
+     *
+     * @param root
+     *          root the publish writes to, sections of different roots are different
+     * @param timeout
+     *          max milliseconds to wait for the stripes
+     * @return
+     */
+    public Holder newHolder(String root, long timeout) {
+        return new Holder(root, timeout);
+    }
+
+    /**
+     * get the section of a path
+     *
+     * @param path
+     * @param deleted
+     *          if the path is deleted, and so can be a folder
+     * @return the section, or null if the path can affect any section
+     */
+    String getSection(String path, boolean deleted) {
+        String[] segments = StringUtils.split(path, '/');
+        if (segments.length >= depth) {
+            return StringUtils.join(segments, '/', 0, depth);
+        } else if (deleted) {
+            return null;
+        } else {
+            return StringUtils.join(segments, '/');
+        }
+    }
+
+    /**
+     * stripes locked by a publish, thread safe so files can be written concurrently
+     */
+    public class Holder {
+
+        private final String root;
+        private final long timeout;
+        private final TreeSet<Integer> held = new TreeSet<Integer>();
+
+        private Holder(String root, long timeout) {
+            this.root = root;
+            this.timeout = timeout;
+        }
+
+        /**
+         * lock the stripes of the given paths that aren't locked yet
+         *
+         * @param written
+         *          paths of the files written
+         * @param deleted
+         *          paths of the files or folders deleted
+         * @throws PublishRejectedException
+         *          if no stripes were held and the stripes couldn't be locked in time
+         */
+        public synchronized void lock(Collection<String> written, Collection<String> deleted)
+                throws PublishRejectedException {
+            if (held.size() == stripes.length) {
+                return;
+            }
+            TreeSet<Integer> needed = new TreeSet<Integer>();
+            for (String path : written) {
+                addStripe(getSection(path, false), needed);
+            }
+            for (String path : deleted) {
+                if (!addStripe(getSection(path, true), needed)) {
+                    break;
+                }
+            }
+            needed.removeAll(held);
+            if (needed.isEmpty()) {
+                return;
+            }
+
+            if (held.isEmpty()) {
+                lockInTime(needed);
+            } else if (!tryLock(needed)) {
+                relock(needed);
+            }
+        }
+
+        /**
+         * release all the stripes
+         */
+        public synchronized void unlock() {
+            release(held);
+            held.clear();
+        }
+
+        private void lockInTime(TreeSet<Integer> needed) throws PublishRejectedException {
+            List<Integer> acquired = new ArrayList<Integer>(needed.size());
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                for (Integer stripe : needed) {
+                    long wait = Math.max(0, deadline - System.currentTimeMillis());
+                    if (!stripes[stripe].tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                        throw reject("Paths of publish to " + targetName + " are locked by other publishes for " +
+                                     "more than " + timeout + " ms");
+                    }
+                    acquired.add(stripe);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(acquired);
+                throw reject("Interrupted while waiting to lock paths of publish to " + targetName);
+            } catch (PublishRejectedException e) {
+                release(acquired);
+                throw e;
+            }
+            held.addAll(acquired);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Locked " + acquired.size() + " stripes of " + targetName + ", holding " + held.size());
+            }
+        }
+
+        /**
+         * @return false if a stripe is held by another publish, and none were locked
+         */
+        private boolean tryLock(TreeSet<Integer> needed) {
+            List<Integer> acquired = new ArrayList<Integer>(needed.size());
+            for (Integer stripe : needed) {
+                if (!stripes[stripe].tryAcquire()) {
+                    release(acquired);
+                    return false;
+                }
+                acquired.add(stripe);
+            }
+            held.addAll(acquired);
+            return true;
+        }
+
+        /**
+         * release the stripes held and wait for them and the needed ones in order, holding none while waiting
+         */
+        private void relock(TreeSet<Integer> needed) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Stripes of " + targetName + " are held by other publishes, releasing " + held.size() +
+                             " stripes to lock them again in order");
+            }
+            needed.addAll(held);
+            unlock();
+            for (Integer stripe : needed) {
+                stripes[stripe].acquireUninterruptibly();
+                held.add(stripe);
+            }
+        }
+
+        /**
+         * @return false if the section needs all the stripes, which were added
+         */
+        private boolean addStripe(String section, TreeSet<Integer> needed) {
+            if (section == null) {
+                for (int i = 0; i < stripes.length; i++) {
+                    needed.add(i);
+                }
+                return false;
+            }
+            needed.add(((root + '/' + section).hashCode() & Integer.MAX_VALUE) % stripes.length);
+            return true;
+        }
+
+        private void release(Collection<Integer> acquired) {
+            for (Integer stripe : acquired) {
+                stripes[stripe].release();
+            }
+        }
+
+        private PublishRejectedException reject(String message) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn(message);
+            }
+            return new PublishRejectedException(message, Math.max(1, (int) TimeUnit.MILLISECONDS.toSeconds(timeout)));
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.PublishRejectedException;
+
+/**
+ * Limits the publishes that write to a target at the same time. Publishes over the limit wait in a bounded queue, in
+ * arrival order, for up to a max wait. A publish that finds the queue full or that waits too long is rejected so the
+ * client can retry later, instead of holding a server thread indefinitely. Each target has its own admission, so
+ * publishes to different targets never wait on each other. Without a limit every publish is admitted right away.
+ */
+public class PublishAdmission {
+
+    private static final Log LOGGER = LogFactory.getLog(PublishAdmission.class);
+
+    private final String targetName;
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final long maxWait;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param targetName
+     * @param maxConcurrent
+     *          max publishes writing at the same time, 0 for no limit
+     * @param maxQueued
+     *          max publishes waiting, 0 to reject publishes as soon as the limit is reached
+     * @param maxWait
+     *          max milliseconds a publish waits
+     */
+    public PublishAdmission(String targetName, int maxConcurrent, int maxQueued, long maxWait) {
+        this.targetName = targetName;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWait = Math.max(0, maxWait);
+    }
+
+    /**
+     * wait for the publish to be admitted, {@link #release()} must be called once it's done
+     *
+     * @throws PublishRejectedException
+     *          if too many publishes are waiting or the max wait elapsed
+     */
+    public void acquire() throws PublishRejectedException {
+        if (permits == null || permits.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw reject("Too many publishes waiting for " + targetName);
+        }
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw reject("Publish to " + targetName + " waited more than " + maxWait + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("Interrupted while waiting to publish to " + targetName);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the number of publishes waiting
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    private PublishRejectedException reject(String message) {
+        if (LOGGER.isWarnEnabled()) {
+            LOGGER.warn(message);
+        }
+        // a full queue takes about the max wait to drain
+        return new PublishRejectedException(message, Math.max(1, (int) TimeUnit.MILLISECONDS.toSeconds(maxWait)));
+    }
+
+}
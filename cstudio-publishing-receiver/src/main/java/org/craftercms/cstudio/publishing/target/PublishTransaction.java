@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.PublishResult;
+import org.craftercms.cstudio.publishing.exception.PublishRejectedException;
+
+/**
+ * Applies the writes and deletes of a single publish to a target root. In direct mode files are written in place as
+ * they arrive. In staged mode every file is written to a per-publish staging directory next to the root, and on
+ * {@link #commit()} the staged files are synced to disk in one batch and moved into place with atomic renames, so
+ * readers of the root never see a partially written file and a failed publish leaves the root untouched. If a move
+ * fails halfway through the commit, the moves already done are undone with the replaced files, which are kept in the
+ * staging directory until the commit is done. A durable direct transaction syncs the files it wrote, and their
+ * folders, on commit too.
+ *
+ * <p>A transaction can hold resources for the publish, like its turn to write to the target, which are released
+ * when it's closed.</p>
+ */
+public class PublishTransaction implements Closeable {
+
+    private static final Log LOGGER = LogFactory.getLog(PublishTransaction.class);
+
+    public static final String STAGING_FOLDER_SUFFIX = "-staging";
+    public static final String DELETED_FOLDER = ".deleted";
+    public static final String REPLACED_FOLDER = ".replaced";
+    public static final String PENDING_FILE_SUFFIX = ".pending";
+
+    private final Path root;
+    private final Path stagingFolder;
+    /** final path -> staged path **/
+    private final Map<Path, Path> stagedFiles = new LinkedHashMap<Path, Path>();
+    private final List<Path> pendingDeletes = new ArrayList<Path>();
+    /** final path -> temporary path, for files written in direct mode that may be discarded **/
+    private final Map<Path, Path> pendingFiles = new HashMap<Path, Path>();
+    /** final path -> digest of the content written **/
+    private final Map<Path, String> digests = new HashMap<Path, String>();
+    private final List<Path> deletes = new ArrayList<Path>();
+    /** files written in place in direct mode, synced on commit if durable **/
+    private final Set<Path> writtenFiles = new LinkedHashSet<Path>();
+    private boolean durable = false;
+    /** locations of the content files left unchanged, and of the files whose metadata was changed **/
+    private final Set<String> unchangedContent = new LinkedHashSet<String>();
+    private final Set<String> changedMetadata = new HashSet<String>();
+    private boolean finished = false;
+    private final List<Runnable> closeActions = new ArrayList<Runnable>();
+    private PathLocks.Holder pathLocks;
+    private TreeDeleter deleter;
+    private PublishResult result;
+    private boolean closed = false;
+
+    private PublishTransaction(File root, boolean staged) {
+        this.root = root.getAbsoluteFile().toPath().normalize();
+        if (staged) {
+            Path parent = this.root.getParent();
+            String stagingName = "." + this.root.getFileName() + STAGING_FOLDER_SUFFIX;
+            this.stagingFolder = parent.resolve(stagingName).resolve(UUID.randomUUID().toString());
+        } else {
+            this.stagingFolder = null;
+        }
+    }
+
+    /**
+     * start a transaction that writes directly to the target root
+     *
+     * @param root
+     * @return
+     */
+    public static PublishTransaction direct(File root) {
+        return new PublishTransaction(root, false);
+    }
+
+    /**
+     * start a transaction that stages all changes until it is committed
+     *
+     * @param root
+     * @return
+     */
+    public static PublishTransaction staged(File root) {
+        return new PublishTransaction(root, true);
+    }
+
+    public boolean isStaged() {
+        return stagingFolder != null;
+    }
+
+    /**
+     * set if the changes are synced to disk on commit in direct mode, staged transactions always sync them
+     *
+     * @param durable
+     */
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    public File getRoot() {
+        return root.toFile();
+    }
+
+    /**
+     * open a stream to write the contents of the given file of the target
+     *
+     * @param file
+     *          the final location of the file
+     * @return
+     * @throws IOException
+     */
+    public OutputStream openStream(File file) throws IOException {
+        Path finalPath = file.getAbsoluteFile().toPath().normalize();
+        Path writePath = finalPath;
+        if (isStaged()) {
+            writePath = stagingFolder.resolve(relativize(finalPath));
+            synchronized (stagedFiles) {
+                stagedFiles.put(finalPath, writePath);
+            }
+        } else {
+            synchronized (writtenFiles) {
+                writtenFiles.add(finalPath);
+            }
+        }
+        Files.createDirectories(writePath.getParent());
+        return new FileOutputStream(writePath.toFile());
+    }
+
+    /**
+     * open a stream to write the contents of the given file of the target, leaving the current contents in place
+     * until {@link #keep(File)} is called. {@link #discard(File)} drops the new contents instead.
+     *
+     * @param file
+     *          the final location of the file
+     * @return
+     * @throws IOException
+     */
+    public OutputStream openPendingStream(File file) throws IOException {
+        if (isStaged()) {
+            return openStream(file);
+        }
+        Path finalPath = file.getAbsoluteFile().toPath().normalize();
+        Path pendingPath = finalPath.resolveSibling("." + finalPath.getFileName() + "." + UUID.randomUUID() +
+                                                    PENDING_FILE_SUFFIX);
+        synchronized (pendingFiles) {
+            pendingFiles.put(finalPath, pendingPath);
+        }
+        Files.createDirectories(pendingPath.getParent());
+        return new FileOutputStream(pendingPath.toFile());
+    }
+
+    /**
+     * replace the file with the contents written by {@link #openPendingStream(File)}. In staged mode this happens on
+     * commit.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void keep(File file) throws IOException {
+        if (!isStaged()) {
+            Path finalPath = file.getAbsoluteFile().toPath().normalize();
+            Path pendingPath;
+            synchronized (pendingFiles) {
+                pendingPath = pendingFiles.remove(finalPath);
+            }
+            if (pendingPath != null) {
+                move(pendingPath, finalPath);
+                synchronized (writtenFiles) {
+                    writtenFiles.add(finalPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * drop the contents written by {@link #openPendingStream(File)}, leaving the file as it was
+     *
+     * @param file
+     */
+    public void discard(File file) {
+        Path finalPath = file.getAbsoluteFile().toPath().normalize();
+        Path discardedPath;
+        if (isStaged()) {
+            synchronized (stagedFiles) {
+                discardedPath = stagedFiles.remove(finalPath);
+            }
+        } else {
+            synchronized (pendingFiles) {
+                discardedPath = pendingFiles.remove(finalPath);
+            }
+        }
+        if (discardedPath != null) {
+            FileUtils.deleteQuietly(discardedPath.toFile());
+        }
+    }
+
+    /**
+     * delete a file or folder of the target, recursively. In staged mode the delete is deferred until commit.
+     *
+     * @param file
+     */
+    public void delete(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        synchronized (deletes) {
+            deletes.add(path);
+        }
+        if (isStaged()) {
+            synchronized (pendingDeletes) {
+                pendingDeletes.add(path);
+            }
+        } else if (deleter != null) {
+            deleter.delete(root, path);
+        } else {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * remember the digest of the contents written for a file
+     *
+     * @param file
+     * @param digest
+     */
+    public void setDigest(File file, String digest) {
+        synchronized (digests) {
+            digests.put(file.getAbsoluteFile().toPath().normalize(), digest);
+        }
+    }
+
+    /**
+     * @return digests of the files written, by final location
+     */
+    public Map<File, String> getDigests() {
+        Map<File, String> files = new HashMap<File, String>();
+        synchronized (digests) {
+            for (Map.Entry<Path, String> entry : digests.entrySet()) {
+                files.put(entry.getKey().toFile(), entry.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * remember that the content of a file was republished unchanged
+     *
+     * @param location
+     */
+    public void contentUnchanged(String location) {
+        synchronized (unchangedContent) {
+            unchangedContent.add(location);
+        }
+    }
+
+    /**
+     * remember that the metadata of a file was changed
+     *
+     * @param location
+     *          location of the file the metadata is for
+     */
+    public void metadataChanged(String location) {
+        synchronized (unchangedContent) {
+            changedMetadata.add(location);
+        }
+    }
+
+    /**
+     * @return locations of the files republished with unchanged content but changed metadata
+     */
+    public List<String> getUnchangedContentWithChangedMetadata() {
+        List<String> locations = new ArrayList<String>();
+        synchronized (unchangedContent) {
+            for (String location : unchangedContent) {
+                if (changedMetadata.contains(location)) {
+                    locations.add(location);
+                }
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return files and folders deleted
+     */
+    public List<File> getDeletedFiles() {
+        List<File> files = new ArrayList<File>();
+        synchronized (deletes) {
+            for (Path path : deletes) {
+                files.add(path.toFile());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * make all the changes of this transaction visible in the target root
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!isStaged()) {
+            for (Map.Entry<Path, Path> entry : pendingFiles.entrySet()) {
+                move(entry.getValue(), entry.getKey());
+                writtenFiles.add(entry.getKey());
+            }
+            pendingFiles.clear();
+            if (durable) {
+                syncDirect();
+            }
+            return;
+        }
+        // moves done so far, undone in reverse order if one fails
+        List<Move> moves = new ArrayList<Move>();
+        try {
+            for (Path stagedPath : stagedFiles.values()) {
+                sync(stagedPath);
+            }
+            Path replacedFolder = stagingFolder.resolve(REPLACED_FOLDER);
+            Set<Path> changedFolders = new LinkedHashSet<Path>();
+            int count = 0;
+            for (Map.Entry<Path, Path> entry : stagedFiles.entrySet()) {
+                Path finalPath = entry.getKey();
+                Files.createDirectories(finalPath.getParent());
+                Path replaced = null;
+                if (Files.isRegularFile(finalPath)) {
+                    // the replaced file is kept in the staging folder until the commit is done, to undo the move
+                    replaced = replacedFolder.resolve(Integer.toString(count++));
+                    Files.createDirectories(replacedFolder);
+                    backup(finalPath, replaced);
+                }
+                move(entry.getValue(), finalPath);
+                moves.add(new Move(entry.getValue(), finalPath, replaced));
+                changedFolders.add(finalPath.getParent());
+            }
+            if (!pendingDeletes.isEmpty()) {
+                Path deletedFolder = stagingFolder.resolve(DELETED_FOLDER);
+                count = 0;
+                for (Path deleted : pendingDeletes) {
+                    if (Files.exists(deleted)) {
+                        Path trash = deletedFolder.resolve(Integer.toString(count++));
+                        Files.createDirectories(deletedFolder);
+                        move(deleted, trash);
+                        moves.add(new Move(deleted, trash, null));
+                        changedFolders.add(deleted.getParent());
+                    }
+                }
+            }
+            for (Path folder : changedFolders) {
+                syncFolder(folder);
+            }
+            moves.clear();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Committed " + stagedFiles.size() + " files and " + pendingDeletes.size() +
+                             " deletes to " + root);
+            }
+        } finally {
+            if (!moves.isEmpty()) {
+                undo(moves);
+            }
+            if (deleter != null) {
+                deleter.discard(stagingFolder);
+            } else {
+                FileUtils.deleteQuietly(stagingFolder.toFile());
+            }
+        }
+    }
+
+    /**
+     * sync the files written in place and the folders changed by a direct transaction
+     */
+    private void syncDirect() throws IOException {
+        Set<Path> changedFolders = new LinkedHashSet<Path>();
+        for (Path written : writtenFiles) {
+            if (Files.isRegularFile(written)) {
+                sync(written);
+                changedFolders.add(written.getParent());
+            }
+        }
+        for (Path deleted : deletes) {
+            changedFolders.add(deleted.getParent());
+        }
+        for (Path folder : changedFolders) {
+            syncFolder(folder);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Synced " + writtenFiles.size() + " files and " + changedFolders.size() + " folders of " +
+                         root);
+        }
+    }
+
+    /**
+     * put back the files moved by a commit that failed halfway
+     *
+     * @param moves
+     */
+    private void undo(List<Move> moves) {
+        LOGGER.error("Commit to " + root + " failed, undoing " + moves.size() + " moves");
+        for (int i = moves.size() - 1; i >= 0; i--) {
+            Move done = moves.get(i);
+            try {
+                if (done.replaced != null) {
+                    move(done.replaced, done.target);
+                } else {
+                    move(done.target, done.source);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Unable to undo the move of " + done.source + " to " + done.target, e);
+            }
+        }
+    }
+
+    /**
+     * discard all the changes that haven't been made visible yet
+     */
+    public void rollback() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        synchronized (pendingFiles) {
+            for (Path pendingPath : pendingFiles.values()) {
+                FileUtils.deleteQuietly(pendingPath.toFile());
+            }
+            pendingFiles.clear();
+        }
+        if (isStaged()) {
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Rolling back " + stagedFiles.size() + " staged files for " + root);
+            }
+            FileUtils.deleteQuietly(stagingFolder.toFile());
+        }
+    }
+
+    /**
+     * record the files of the transaction in the given result
+     *
+     * @param result
+     */
+    public void useResult(PublishResult result) {
+        this.result = result;
+    }
+
+    public PublishResult getResult() {
+        return result;
+    }
+
+    /**
+     * remove deleted folders, and the staging folder once committed, with the given deleter instead of one file at
+     * a time on the publishing thread
+     *
+     * @param deleter
+     */
+    public void useDeleter(TreeDeleter deleter) {
+        this.deleter = deleter;
+    }
+
+    /**
+     * lock the paths the transaction writes and deletes until it's closed, so concurrent transactions only wait on
+     * each other when they change the same sections of the target
+     *
+     * @param pathLocks
+     */
+    public void usePathLocks(final PathLocks.Holder pathLocks) {
+        this.pathLocks = pathLocks;
+        onClose(new Runnable() {
+
+            @Override
+            public void run() {
+                pathLocks.unlock();
+            }
+
+        });
+    }
+
+    /**
+     * lock the sections of the given paths, if the transaction uses path locks
+     *
+     * @param written
+     *          paths relative to the content folder of files that will be written
+     * @param deleted
+     *          paths relative to the content folder of files or folders that will be deleted
+     * @throws PublishRejectedException
+     *          if the paths are locked by other transactions for too long
+     */
+    public void lockPaths(Collection<String> written, Collection<String> deleted) throws PublishRejectedException {
+        if (pathLocks != null) {
+            pathLocks.lock(written, deleted);
+        }
+    }
+
+    /**
+     * run an action when the transaction is closed. Actions run in the reverse order they were added.
+     *
+     * @param action
+     */
+    public synchronized void onClose(Runnable action) {
+        closeActions.add(action);
+    }
+
+    /**
+     * end the transaction, discarding the changes that weren't committed and releasing what it holds
+     */
+    @Override
+    public void close() {
+        rollback();
+        List<Runnable> actions;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            actions = new ArrayList<Runnable>(closeActions);
+        }
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            try {
+                actions.get(i).run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error closing transaction for " + root, e);
+            }
+        }
+    }
+
+    private Path relativize(Path finalPath) throws IOException {
+        if (!finalPath.startsWith(root)) {
+            throw new IOException(finalPath + " is outside of the target root " + root);
+        }
+        return root.relativize(finalPath);
+    }
+
+    private void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * sync a folder so the files moved in and out of it survive a crash. Not every platform can open a folder, in
+     * which case this is a no-op.
+     */
+    private void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to sync folder " + folder, e);
+            }
+        }
+    }
+
+    /**
+     * keep the current contents of a file at another path, without removing it, with a hard link when possible
+     */
+    private void backup(Path file, Path backup) throws IOException {
+        try {
+            Files.createLink(backup, file);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file, backup, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("Atomic move not supported for " + target + ", falling back to a regular move");
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * move of a file done by a commit, with the file it replaced if any
+     */
+    private static class Move {
+
+        final Path source;
+        final Path target;
+        final Path replaced;
+
+        Move(Path source, Path target, Path replaced) {
+            this.source = source;
+            this.target = target;
+            this.replaced = replaced;
+        }
+
+    }
+
+}
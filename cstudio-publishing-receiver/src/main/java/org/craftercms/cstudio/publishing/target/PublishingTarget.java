@@ -16,12 +16,22 @@
  */
 package org.craftercms.cstudio.publishing.target;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+import org.craftercms.cstudio.publishing.processor.PublishingPreProcessor;
 import org.craftercms.cstudio.publishing.processor.PublishingProcessor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * publishing target
@@ -32,6 +42,45 @@ import org.craftercms.cstudio.publishing.processor.PublishingProcessor;
 public class PublishingTarget {
 
 	private static Log LOGGER = LogFactory.getLog(PublishingTarget.class);
+
+	/** root folder of the target, can contain the siteId variable **/
+	public static final String CONFIG_ROOT = "root";
+	/** folder of the content files, relative to the root **/
+	public static final String CONFIG_CONTENT_FOLDER = "contentFolder";
+	/** folder of the metadata files, relative to the root **/
+	public static final String CONFIG_METADATA_FOLDER = "metadataFolder";
+	/** suffix of the metadata file of a content file **/
+	public static final String CONFIG_METADATA_FILENAME_SUFFIX = ".meta.xml";
+	/** number of threads used to write the files of a publish **/
+	public static final String CONFIG_WRITER_THREADS = "writerThreads";
+	/** number of independent post processors of a change set run concurrently **/
+	public static final String CONFIG_POST_PROCESSING_PARALLELISM = "postProcessingParallelism";
+	/** max milliseconds the post processors of a change set can take **/
+	public static final String CONFIG_POST_PROCESSING_TIMEOUT = "postProcessingTimeout";
+	/** max number of files in a publish request **/
+	public static final String CONFIG_MAX_PARTS = "maxParts";
+	/** max size in bytes of a publish request, once decompressed **/
+	public static final String CONFIG_MAX_BYTES = "maxBytes";
+	/** size in bytes of the received files of a request kept in memory, the rest are spooled to disk **/
+	public static final String CONFIG_SIZE_THRESHOLD = "sizeThreshold";
+	/** max number of received files open at the same time across all publishes **/
+	public static final String CONFIG_MAX_OPEN_STREAMS = "maxOpenStreams";
+	/** max number of publishes writing to the target at the same time, 0 for no limit **/
+	public static final String CONFIG_MAX_CONCURRENT_PUBLISHES = "maxConcurrentPublishes";
+	/** max number of publishes waiting for their turn to write, more are rejected **/
+	public static final String CONFIG_MAX_QUEUED_PUBLISHES = "maxQueuedPublishes";
+	/** max milliseconds a publish waits for its turn to write before being rejected **/
+	public static final String CONFIG_ADMISSION_TIMEOUT = "admissionTimeout";
+	/** if publishes lock the sections of the target they change, so publishes to the same section don't interleave **/
+	public static final String CONFIG_PATH_LOCKING = "pathLocking";
+	/** number of locks the sections of the target are hashed into **/
+	public static final String CONFIG_PATH_LOCK_STRIPES = "pathLockStripes";
+	/** number of folders in the sections locked by publishes, /site/website/news with 3 **/
+	public static final String CONFIG_PATH_LOCK_DEPTH = "pathLockDepth";
+	/** number of threads removing a deleted folder, 1 to remove it on the publishing thread **/
+	public static final String CONFIG_DELETE_PARALLELISM = "deleteParallelism";
+	/** if deleted folders are moved to a trash folder and removed in the background **/
+	public static final String CONFIG_DELETE_TO_TRASH = "deleteToTrash";
 	
 	/** target name **/
 	private String name;
@@ -39,14 +88,44 @@ public class PublishingTarget {
 	private TargetManager manager;
 	/** target configuration parameters **/
 	private Map<String, String> params;
-	/** target publishing pre-processors **/
-	private List<PublishingProcessor> preProcessors; // NOT USED
+	/** target publishing pre-processors, run on each file as it is written **/
+	private List<PublishingPreProcessor> preProcessors;
 	/** target publishing post-processors **/
 	private List<PublishingProcessor> postProcessors;
 
 	private PublishingProcessor defaultPostProcessor = null;
 	private boolean defaultProcessingEnabled = false;
 
+	/** pool shared by all publishes to this target to write files concurrently **/
+	private ExecutorService writerExecutor;
+	/** pool shared by all publishes to this target to run post processors concurrently **/
+	private ExecutorService postProcessorExecutor;
+	private Semaphore openStreamPermits;
+
+	private PublishAdmission admission;
+
+	private PathLocks pathLocks;
+
+	private TreeDeleter treeDeleter;
+
+	/** max number of sites whose path resolvers are kept **/
+	private static final int MAX_PATH_RESOLVERS = 1000;
+
+	/** site -> path resolver, least recently used first **/
+	private final Map<String, TargetPathResolver> pathResolvers = new LinkedHashMap<String, TargetPathResolver>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TargetPathResolver> eldest) {
+			return size() > MAX_PATH_RESOLVERS;
+		}
+
+	};
+
+	/** digests of the files in each root of this target **/
+	private final Map<String, TargetHashIndex> hashIndexes = new HashMap<String, TargetHashIndex>();
+
 	/**
 	 * register self
 	 * 
@@ -73,7 +152,7 @@ public class PublishingTarget {
 	/**
 	 * @return the preProcessors
 	 */
-	public List<PublishingProcessor> getPreProcessors() {
+	public List<PublishingPreProcessor> getPreProcessors() {
 		return preProcessors;
 	}
 
@@ -81,7 +160,7 @@ public class PublishingTarget {
 	 * @param preProcessors
 	 *            the preProcessors to set
 	 */
-	public void setPreProcessors(List<PublishingProcessor> preProcessors) {
+	public void setPreProcessors(List<PublishingPreProcessor> preProcessors) {
 		this.preProcessors = preProcessors;
 	}
 
@@ -106,6 +185,154 @@ public class PublishingTarget {
     public boolean isDefaultProcessingEnabled() { return defaultProcessingEnabled; }
     public void setDefaultProcessingEnabled(boolean defaultProcessingEnabled) { this.defaultProcessingEnabled = defaultProcessingEnabled; }
 
+    /**
+	 * get the pool used to write files concurrently, sized by the writerThreads parameter
+	 *
+	 * @return the writer pool
+	 */
+	public synchronized ExecutorService getWriterExecutor() {
+		if (writerExecutor == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(name + "-writer-");
+			threadFactory.setDaemon(true);
+			writerExecutor = Executors.newFixedThreadPool(getWriterThreads(), threadFactory);
+		}
+		return writerExecutor;
+	}
+
+	/**
+	 * @return the number of threads used to write the files of a publish
+	 */
+	public int getWriterThreads() {
+		return Math.max(1, getIntParameter(CONFIG_WRITER_THREADS, 1));
+	}
+
+	/**
+	 * get the pool used to run independent post processors concurrently, sized by the postProcessingParallelism
+	 * parameter
+	 *
+	 * @return the post processor pool
+	 */
+	public synchronized ExecutorService getPostProcessorExecutor() {
+		if (postProcessorExecutor == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(name + "-processor-");
+			threadFactory.setDaemon(true);
+			postProcessorExecutor = Executors.newFixedThreadPool(getPostProcessingParallelism(), threadFactory);
+		}
+		return postProcessorExecutor;
+	}
+
+	/**
+	 * get the index of the digests of the files in a root of this target, there's one per site when the root has
+	 * the siteId variable
+	 *
+	 * @param root
+	 * @return the hash index
+	 */
+	public TargetHashIndex getHashIndex(File root) {
+		String key = root.getAbsolutePath();
+		synchronized (hashIndexes) {
+			TargetHashIndex hashIndex = hashIndexes.get(key);
+			if (hashIndex == null) {
+				hashIndex = new TargetHashIndex(root);
+				hashIndexes.put(key, hashIndex);
+			}
+			return hashIndex;
+		}
+	}
+
+	/**
+	 * @return the number of post processors of a change set that can run at the same time
+	 */
+	public int getPostProcessingParallelism() {
+		return Math.max(1, getIntParameter(CONFIG_POST_PROCESSING_PARALLELISM, 1));
+	}
+
+	/**
+	 * @return max milliseconds the post processors of a change set can take, 0 for no limit
+	 */
+	public long getPostProcessingTimeout() {
+		return Math.max(0, getIntParameter(CONFIG_POST_PROCESSING_TIMEOUT, 0));
+	}
+
+	/**
+	 * get the permits to open received files, one per file, sized by the maxOpenStreams parameter
+	 *
+	 * @return the permits, or null if the number of open files isn't limited
+	 */
+	public synchronized Semaphore getOpenStreamPermits() {
+		int maxOpenStreams = getIntParameter(CONFIG_MAX_OPEN_STREAMS, 0);
+		if (maxOpenStreams > 0 && openStreamPermits == null) {
+			openStreamPermits = new Semaphore(maxOpenStreams, true);
+		}
+		return openStreamPermits;
+	}
+
+	/**
+	 * get the admission of publishes writing to this target. By default the number of publishes written at the
+	 * same time isn't limited, like before admission existed. With maxConcurrentPublishes set, up to 16 more
+	 * publishes can wait for up to a minute.
+	 *
+	 * @return the admission
+	 */
+	public synchronized PublishAdmission getAdmission() {
+		if (admission == null) {
+			admission = new PublishAdmission(name, getIntParameter(CONFIG_MAX_CONCURRENT_PUBLISHES, 0),
+					getIntParameter(CONFIG_MAX_QUEUED_PUBLISHES, 16), getLongParameter(CONFIG_ADMISSION_TIMEOUT, 60000));
+		}
+		return admission;
+	}
+
+	/**
+	 * get the locks on the sections of this target, which let publishes to different sections write at the same
+	 * time while publishes to the same section wait on each other
+	 *
+	 * @return the path locks, or null if pathLocking isn't enabled
+	 */
+	public synchronized PathLocks getPathLocks() {
+		if (pathLocks == null && getBooleanParameter(CONFIG_PATH_LOCKING, false)) {
+			pathLocks = new PathLocks(name, getIntParameter(CONFIG_PATH_LOCK_STRIPES, 256),
+					getIntParameter(CONFIG_PATH_LOCK_DEPTH, 3));
+		}
+		return pathLocks;
+	}
+
+	/**
+	 * get the deleter of the files and folders of this target, configured by the deleteParallelism and deleteToTrash
+	 * parameters
+	 *
+	 * @return the tree deleter
+	 */
+	public synchronized TreeDeleter getTreeDeleter() {
+		if (treeDeleter == null) {
+			treeDeleter = new TreeDeleter(name, getIntParameter(CONFIG_DELETE_PARALLELISM, 1),
+					getBooleanParameter(CONFIG_DELETE_TO_TRASH, false));
+		}
+		return treeDeleter;
+	}
+
+	/**
+	 * get the resolver of the paths of the files published to this target for a site. Resolvers are kept for the
+	 * most recently used sites, as the site comes from the request.
+	 *
+	 * @param site
+	 * 			site replacing the siteId variable of the target root and folders, can be null
+	 * @return the path resolver
+	 * @throws ContentRejectedException
+	 * 			if the site isn't a plain folder name, invalid sites are never cached
+	 */
+	public TargetPathResolver getPathResolver(String site) throws ContentRejectedException {
+		String key = site != null ? site : "";
+		synchronized (pathResolvers) {
+			TargetPathResolver resolver = pathResolvers.get(key);
+			if (resolver == null) {
+				resolver = new TargetPathResolver(getParameter(CONFIG_ROOT), getParameter(CONFIG_CONTENT_FOLDER),
+						getParameter(CONFIG_METADATA_FOLDER), CONFIG_METADATA_FILENAME_SUFFIX, site);
+				pathResolvers.put(key, resolver);
+			}
+			return resolver;
+		}
+	}
+
     /**
 	 * @return the manager
 	 */
@@ -148,7 +375,64 @@ public class PublishingTarget {
 			return null;
 		}
 	}
+
+	/**
+	 * get target configuration parameter as a boolean
+	 *
+	 * @param name
+	 * @param defaultValue
+	 *            value to use when the parameter is not set
+	 * @return
+	 */
+	public boolean getBooleanParameter(String name, boolean defaultValue) {
+		String value = getParameter(name);
+		if (StringUtils.isNotBlank(value)) {
+			return Boolean.parseBoolean(value.trim());
+		} else {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * get target configuration parameter as an int
+	 *
+	 * @param name
+	 * @param defaultValue
+	 *            value to use when the parameter is not set or is not a number
+	 * @return
+	 */
+	public int getIntParameter(String name, int defaultValue) {
+		String value = getParameter(name);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.warn("Invalid value '" + value + "' for parameter " + name + " of target " + this.name);
+			}
+		}
+		return defaultValue;
+	}
 	
+	/**
+	 * get target configuration parameter as a long
+	 *
+	 * @param name
+	 * @param defaultValue
+	 *            value to use when the parameter is not set or is not a number
+	 * @return
+	 */
+	public long getLongParameter(String name, long defaultValue) {
+		String value = getParameter(name);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.warn("Invalid value '" + value + "' for parameter " + name + " of target " + this.name);
+			}
+		}
+		return defaultValue;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#toString()
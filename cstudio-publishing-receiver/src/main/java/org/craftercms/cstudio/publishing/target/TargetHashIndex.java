@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent index of the digests of the files in a target root, used to recognize files republished with the same
+ * contents. Each digest is stored with the size and modification time the file had when it was indexed, so a file
+ * changed without the index knowing, for example by a publish interrupted before the index was updated, is never
+ * mistaken for unchanged.
+ *
+ * <p>The index is kept next to the root as a {@link CompactedLog}, compacted once it grows to twice the number of
+ * indexed files.</p>
+ */
+public class TargetHashIndex {
+
+    public static final String INDEX_FILE_SUFFIX = "-hashes";
+
+    private final Path root;
+    private final CompactedLog log;
+    private TreeMap<String, Entry> entries;
+
+    /**
+     * @param root
+     *          the target root whose files are indexed
+     */
+    public TargetHashIndex(File root) {
+        this.root = root.getAbsoluteFile().toPath().normalize();
+        this.log = new CompactedLog(this.root.resolveSibling("." + this.root.getFileName() + INDEX_FILE_SUFFIX)
+                                        .toFile(), new LoggedEntries());
+    }
+
+    /**
+     * check if a file had the given contents before it was written
+     *
+     * @param file
+     * @param size
+     *          size of the file before it was written
+     * @param lastModified
+     *          modification time of the file before it was written
+     * @param digest
+     *          digest of the new contents
+     * @return true if the indexed digest of the file matches and the file wasn't changed since it was indexed
+     * @throws IOException
+     */
+    public synchronized boolean isUnchanged(File file, long size, long lastModified, String digest)
+            throws IOException {
+        return new Entry(digest, size, lastModified).equals(getEntries().get(relativize(file)));
+    }
+
+    /**
+     * get the indexed digest of a file
+     *
+     * @param file
+     * @return the digest, or null if the file isn't indexed or was changed since it was indexed
+     * @throws IOException
+     */
+    public synchronized String getDigest(File file) throws IOException {
+        Entry entry = getEntries().get(relativize(file));
+        if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+            return entry.digest;
+        }
+        return null;
+    }
+
+    /**
+     * index the digest of a file computed outside of a publish
+     *
+     * @param file
+     * @param size
+     *          size of the file when its digest was computed
+     * @param lastModified
+     *          modification time of the file when its digest was computed
+     * @param digest
+     * @throws IOException
+     */
+    public synchronized void index(File file, long size, long lastModified, String digest) throws IOException {
+        Entry entry = new Entry(digest, size, lastModified);
+        String path = relativize(file);
+        if (entry.equals(getEntries().put(path, entry))) {
+            return;
+        }
+        write(path, entry);
+        log.flush();
+    }
+
+    /**
+     * index the files written by a publish, and forget the ones it deleted
+     *
+     * @param written
+     *          digests of the files written, by location
+     * @param deleted
+     *          files or folders deleted
+     * @throws IOException
+     */
+    public synchronized void update(Map<File, String> written, Collection<File> deleted) throws IOException {
+        Map<String, Entry> indexed = getEntries();
+        for (File file : deleted) {
+            String path = relativize(file);
+            removeTree(path);
+            log.write(CompactedLog.REMOVED, path);
+        }
+        for (Map.Entry<File, String> writtenFile : written.entrySet()) {
+            File file = writtenFile.getKey();
+            if (!file.isFile()) {
+                continue;
+            }
+            Entry entry = new Entry(writtenFile.getValue(), file.length(), file.lastModified());
+            String path = relativize(file);
+            if (entry.equals(indexed.get(path))) {
+                continue;
+            }
+            indexed.put(path, entry);
+            write(path, entry);
+        }
+        log.flush();
+    }
+
+    private Map<String, Entry> getEntries() throws IOException {
+        if (entries == null) {
+            entries = new TreeMap<String, Entry>();
+            log.load();
+        }
+        return entries;
+    }
+
+    /**
+     * forget a file, or a folder and all the files in it
+     */
+    private void removeTree(String path) {
+        entries.remove(path);
+        // paths are sorted, so the files of the folder are the ones in the range of its prefix
+        entries.subMap(path + "/", path + "/\uffff").clear();
+    }
+
+    private void write(String path, Entry entry) throws IOException {
+        log.write(CompactedLog.ADDED, entry.digest, String.valueOf(entry.size), String.valueOf(entry.lastModified),
+                  path);
+    }
+
+    private String relativize(File file) throws IOException {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(root)) {
+            throw new IOException(path + " is outside of the target root " + root);
+        }
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * lines of the log are the files added with their digest, size, modification time and path, and the files or
+     * folders removed with their path
+     */
+    private class LoggedEntries implements CompactedLog.Index {
+
+        @Override
+        public boolean apply(String line) {
+            String[] fields = line.split(CompactedLog.SEPARATOR, 5);
+            try {
+                if (fields.length == 2 && fields[0].equals(CompactedLog.REMOVED)) {
+                    removeTree(fields[1]);
+                } else if (fields.length == 5 && fields[0].equals(CompactedLog.ADDED)) {
+                    entries.put(fields[4], new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } else {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public void writeEntries(CompactedLog log) throws IOException {
+            for (Map.Entry<String, Entry> indexed : entries.entrySet()) {
+                write(indexed.getKey(), indexed.getValue());
+            }
+        }
+
+    }
+
+    private static class Entry {
+
+        final String digest;
+        final long size;
+        final long lastModified;
+
+        Entry(String digest, long size, long lastModified) {
+            this.digest = digest;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) o;
+            return size == entry.size && lastModified == entry.lastModified && digest.equals(entry.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return digest.hashCode();
+        }
+
+    }
+
+}
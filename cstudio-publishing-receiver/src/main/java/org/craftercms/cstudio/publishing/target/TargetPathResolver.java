@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang.StringUtils;
+import org.craftercms.cstudio.publishing.exception.ContentRejectedException;
+
+/**
+ * Resolves the locations of published files to paths in the content and metadata folders of a target, for one site.
+ * The folders are resolved once, with the siteId variable replaced, so resolving a file is a single
+ * {@link Path#resolve(String)}. Locations that would end up outside their folder, through .. segments, are rejected,
+ * and so are sites that would move the folders elsewhere, like ../other.
+ */
+public class TargetPathResolver {
+
+    /** variable replaced by the site in the root and folders of a target **/
+    public static final String SITE_VARIABLE = "{siteId}";
+
+    private final Path root;
+    private final Path contentFolder;
+    private final Path metadataFolder;
+    private final String metadataSuffix;
+
+    /**
+     * @param root
+     *          target root, can contain the siteId variable
+     * @param contentFolder
+     *          content folder, relative to the root
+     * @param metadataFolder
+     *          metadata folder, relative to the root
+     * @param metadataSuffix
+     *          appended to the location of the metadata files
+     * @param site
+     *          site replacing the siteId variable, can be empty
+     * @throws ContentRejectedException
+     *          if the site isn't a plain folder name
+     */
+    public TargetPathResolver(String root, String contentFolder, String metadataFolder, String metadataSuffix,
+                              String site) throws ContentRejectedException {
+        checkSite(site);
+        this.root = Paths.get(replaceSite(root, site)).toAbsolutePath().normalize();
+        this.contentFolder = resolveFolder(this.root, replaceSite(contentFolder, site));
+        this.metadataFolder = resolveFolder(this.root, replaceSite(metadataFolder, site));
+        this.metadataSuffix = metadataSuffix;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getContentFolder() {
+        return contentFolder;
+    }
+
+    public Path getMetadataFolder() {
+        return metadataFolder;
+    }
+
+    /**
+     * @param location
+     *          location of the file, like /site/website/index.xml
+     * @return the path of the file in the content folder
+     * @throws ContentRejectedException
+     *          if the location is outside of the content folder
+     */
+    public Path resolveContent(String location) throws ContentRejectedException {
+        return resolve(contentFolder, location, "");
+    }
+
+    /**
+     * @param location
+     *          location of the file the metadata is for
+     * @return the path of the metadata file in the metadata folder
+     * @throws ContentRejectedException
+     *          if the location is outside of the metadata folder
+     */
+    public Path resolveMetadata(String location) throws ContentRejectedException {
+        return resolve(metadataFolder, location, metadataSuffix);
+    }
+
+    private Path resolve(Path folder, String location, String suffix) throws ContentRejectedException {
+        if (StringUtils.isBlank(location)) {
+            throw new ContentRejectedException("Missing file location");
+        }
+        Path path;
+        try {
+            path = folder.resolve(StringUtils.stripStart(location, "/\\") + suffix);
+        } catch (InvalidPathException e) {
+            throw new ContentRejectedException("Invalid file location " + location);
+        }
+        // normalizing is only needed, and only changes the path, when there are . or .. segments
+        if (location.startsWith(".") || location.contains("/.")) {
+            path = path.normalize();
+        }
+        if (!path.startsWith(folder) || path.equals(folder)) {
+            throw new ContentRejectedException("File location " + location + " is outside of " + folder);
+        }
+        return path;
+    }
+
+    private static void checkSite(String site) throws ContentRejectedException {
+        if (StringUtils.containsAny(site, "/\\\0") || StringUtils.contains(site, "..")) {
+            throw new ContentRejectedException("Invalid site " + StringUtils.replaceChars(site, '\0', '?'));
+        }
+    }
+
+    private static Path resolveFolder(Path root, String folder) {
+        if (StringUtils.isEmpty(folder)) {
+            return root;
+        }
+        return root.resolve(StringUtils.stripStart(folder, "/\\")).normalize();
+    }
+
+    private static String replaceSite(String value, String site) {
+        if (value == null) {
+            return "";
+        }
+        return StringUtils.isNotEmpty(site) ? StringUtils.replace(value, SITE_VARIABLE, site) : value;
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2007-2017 Crafter Software Corporation.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.craftercms.cstudio.publishing.target;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Deletes files and folder trees of a target. A tree is removed with a single walk, either on the calling thread or,
+ * with a parallelism over 1, split by folder on a fork/join pool, which is much faster for large trees on disks that
+ * handle concurrent unlinks well.
+ *
+ * <p>With the trash enabled a deleted tree is first renamed into a trash folder next to the root, so it disappears
+ * from the target at once, and is removed in the background. Trees left in the trash by a restart are removed the
+ * first time the trash is used again.</p>
+ *
+ * <p>Files that can't be removed are logged and skipped, like a quiet delete.</p>
+ */
+public class TreeDeleter {
+
+    private static final Log LOGGER = LogFactory.getLog(TreeDeleter.class);
+
+    public static final String TRASH_FOLDER_SUFFIX = "-trash";
+
+    private final String targetName;
+    private final int parallelism;
+    private final boolean trashEnabled;
+    private final Set<Path> sweptTrashFolders = ConcurrentHashMap.newKeySet();
+    private ForkJoinPool pool;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param targetName
+     * @param parallelism
+     *          number of threads removing a tree, 1 to remove it on the calling thread
+     * @param trashEnabled
+     *          if deleted trees are moved to the trash and removed in the background
+     */
+    public TreeDeleter(String targetName, int parallelism, boolean trashEnabled) {
+        this.targetName = targetName;
+        this.parallelism = Math.max(1, parallelism);
+        this.trashEnabled = trashEnabled;
+    }
+
+    /**
+     * add the locations of all the files under a path, the path itself if it's a file
+     *
+     * @param path
+     *          file or folder
+     * @param location
+     *          location of the path, the locations of the files are relative to it
+     * @param locations
+     *          where the locations are added
+     * @throws IOException
+     */
+    public static void list(final Path path, final String location, final Collection<String> locations)
+            throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isDirectory()) {
+                    locations.add(getLocation(location, path, file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                LOGGER.warn("Unable to list " + file, e);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    /**
+     * delete a file or folder of a target root
+     *
+     * @param root
+     *          root of the target the path is in
+     * @param path
+     */
+    public void delete(Path root, Path path) {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (trashEnabled && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Path trash = moveToTrash(root, path);
+            if (trash != null) {
+                removeLater(trash);
+                return;
+            }
+        }
+        remove(path);
+    }
+
+    /**
+     * remove a folder nobody reads anymore, like the staging folder of a finished publish, in the background if the
+     * trash is enabled
+     *
+     * @param path
+     */
+    public void discard(Path path) {
+        if (trashEnabled) {
+            removeLater(path);
+        } else {
+            remove(path);
+        }
+    }
+
+    /**
+     * remove a file or folder right away
+     *
+     * @param path
+     */
+    public void remove(Path path) {
+        long start = System.currentTimeMillis();
+        AtomicInteger count = new AtomicInteger();
+        if (parallelism > 1 && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            getPool().invoke(new RemoveTask(path, count));
+        } else {
+            removeTree(path, count);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Removed " + count + " files and folders of " + path + " in " +
+                         (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private void removeLater(final Path path) {
+        getPool().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                remove(path);
+            }
+
+        });
+    }
+
+    private Path moveToTrash(Path root, Path path) {
+        Path trashFolder = root.resolveSibling("." + root.getFileName() + TRASH_FOLDER_SUFFIX);
+        try {
+            Files.createDirectories(trashFolder);
+            if (sweptTrashFolders.add(trashFolder)) {
+                // anything already there was left by a previous run
+                try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(trashFolder)) {
+                    for (Path leftover : leftovers) {
+                        removeLater(leftover);
+                    }
+                }
+            }
+            Path trash = trashFolder.resolve(UUID.randomUUID().toString());
+            Files.move(path, trash, StandardCopyOption.ATOMIC_MOVE);
+            return trash;
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("Trash " + trashFolder + " of " + targetName + " is not on the same file system as " + path +
+                        ", removing it in place");
+        } catch (IOException e) {
+            LOGGER.warn("Unable to move " + path + " to the trash of " + targetName + ", removing it in place", e);
+        }
+        return null;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(targetName + "-delete-" + threadCount.incrementAndGet());
+                    return thread;
+                }
+
+            }, null, false);
+        }
+        return pool;
+    }
+
+    private static void removeTree(Path path, final AtomicInteger count) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    removeFile(file, count);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        LOGGER.warn("Unable to remove " + file, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    removeFile(dir, count);
+                    return FileVisitResult.CONTINUE;
+                }
+
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove " + path, e);
+        }
+    }
+
+    private static void removeFile(Path path, AtomicInteger count) {
+        try {
+            if (Files.deleteIfExists(path)) {
+                count.incrementAndGet();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove " + path, e);
+        }
+    }
+
+    private static String getLocation(String location, Path root, Path file) {
+        if (file.equals(root)) {
+            return location;
+        }
+        StringBuilder sb = new StringBuilder(location);
+        if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '/') {
+            sb.append('/');
+        }
+        boolean first = true;
+        for (Path name : root.relativize(file)) {
+            if (!first) {
+                sb.append('/');
+            }
+            sb.append(name.toString());
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * removes the files of a folder, forking a task for each sub folder, and then the folder
+     */
+    private static class RemoveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 2811409335436218046L;
+
+        private final Path folder;
+        private final AtomicInteger count;
+
+        private RemoveTask(Path folder, AtomicInteger count) {
+            this.folder = folder;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            List<RemoveTask> subtasks = new ArrayList<RemoveTask>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+                for (Path child : children) {
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        subtasks.add(new RemoveTask(child, count));
+                    } else {
+                        removeFile(child, count);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to list " + folder, e);
+            }
+            invokeAll(subtasks);
+            removeFile(folder, count);
+        }
+
+    }
+
+}
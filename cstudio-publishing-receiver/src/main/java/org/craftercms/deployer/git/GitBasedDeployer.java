@@ -13,6 +13,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.collections4.CollectionUtils;
 import org.craftercms.cstudio.publishing.PublishedChangeSet;
 import org.craftercms.cstudio.publishing.exception.PublishingException;
+import org.craftercms.cstudio.publishing.processor.ProcessorGraphExecutor;
 import org.craftercms.deployer.git.config.SiteConfiguration;
 import org.craftercms.deployer.git.config.SiteConfigurationLoader;
 import org.craftercms.deployer.git.processor.PublishingProcessor;
@@ -31,6 +32,7 @@ import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,6 +40,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class GitBasedDeployer {
@@ -193,19 +197,61 @@ public class GitBasedDeployer {
 
 
 
-    private void doPostProcessing(SiteConfiguration siteConfiguration, PublishedChangeSet changeSet) {
+    private void doPostProcessing(final SiteConfiguration siteConfiguration, final PublishedChangeSet changeSet) {
         logger.debug("Change Set:\n" + changeSet.toString());
         List<PublishingProcessor> processors = siteConfiguration.getPostProcessors();
         if (CollectionUtils.isNotEmpty(processors)) {
-            Iterator<PublishingProcessor> iterator = processors.iterator();
-            while (iterator.hasNext()) {
-                PublishingProcessor processor = iterator.next();
-                try {
-                    processor.doProcess(siteConfiguration, changeSet);
-                } catch (PublishingException exc) {
-                    logger.error("Error executing processor " + processor.getName() + " for site " + siteConfiguration.getName(), exc);
+            List<ProcessorGraphExecutor.Node> nodes = new ArrayList<>(processors.size());
+            for (final PublishingProcessor processor : processors) {
+                nodes.add(new ProcessorGraphExecutor.Node() {
+
+                    @Override
+                    public String getName() {
+                        return processor.getName();
+                    }
+
+                    @Override
+                    public int getOrder() {
+                        return processor.getOrder();
+                    }
+
+                    @Override
+                    public List<String> getDependsOn() {
+                        return processor.getDependsOn();
+                    }
+
+                    @Override
+                    public void execute() {
+                        try {
+                            processor.doProcess(siteConfiguration, changeSet);
+                        } catch (PublishingException exc) {
+                            logger.error("Error executing processor " + processor.getName() + " for site " + siteConfiguration.getName(), exc);
+                        }
+                    }
+
+                });
+            }
+            try {
+                getGraphExecutor().execute(nodes);
+            } catch (PublishingException exc) {
+                logger.error("Error executing processors for site " + siteConfiguration.getName(), exc);
+            }
+        }
+    }
+
+    private ProcessorGraphExecutor getGraphExecutor() {
+        if (postProcessingParallelism > 1 || postProcessingTimeout > 0) {
+            synchronized (this) {
+                if (postProcessorExecutor == null) {
+                    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("git-deployer-processor-");
+                    threadFactory.setDaemon(true);
+                    postProcessorExecutor = Executors.newFixedThreadPool(Math.max(1, postProcessingParallelism),
+                                                                         threadFactory);
                 }
             }
+            return new ProcessorGraphExecutor(postProcessorExecutor, postProcessingTimeout);
+        } else {
+            return new ProcessorGraphExecutor();
         }
     }
 
@@ -215,6 +261,15 @@ public class GitBasedDeployer {
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
 
+    public int getPostProcessingParallelism() { return postProcessingParallelism; }
+    public void setPostProcessingParallelism(int postProcessingParallelism) { this.postProcessingParallelism = postProcessingParallelism; }
+
+    public long getPostProcessingTimeout() { return postProcessingTimeout; }
+    public void setPostProcessingTimeout(long postProcessingTimeout) { this.postProcessingTimeout = postProcessingTimeout; }
+
     private SiteConfigurationLoader siteConfigurationLoader;
     private boolean enabled;
+    private int postProcessingParallelism = 1;
+    private long postProcessingTimeout = 0;
+    private ExecutorService postProcessorExecutor;
 }
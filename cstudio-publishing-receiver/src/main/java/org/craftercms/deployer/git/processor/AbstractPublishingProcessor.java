@@ -16,6 +16,8 @@
  */
 package org.craftercms.deployer.git.processor;
 
+import java.util.List;
+
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -25,6 +27,7 @@ public abstract class AbstractPublishingProcessor implements PublishingProcessor
 
     protected String name;
     protected int order;
+    protected List<String> dependsOn;
 
     public AbstractPublishingProcessor() {
         order = Integer.MAX_VALUE;
@@ -48,4 +51,13 @@ public abstract class AbstractPublishingProcessor implements PublishingProcessor
         this.order = order;
     }
 
+    @Override
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
 }
@@ -21,6 +21,8 @@ import org.craftercms.cstudio.publishing.exception.PublishingException;
 import org.craftercms.cstudio.publishing.target.PublishingTarget;
 import org.craftercms.deployer.git.config.SiteConfiguration;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -59,4 +61,13 @@ public interface PublishingProcessor {
      * @return order value
      */
     int getOrder();
+
+    /**
+     * get the names of the processors that must finish before this one runs, on top of the ones with a lower order.
+     *
+     * @return processor names, can be null. None by default.
+     */
+    default List<String> getDependsOn() {
+        return Collections.emptyList();
+    }
 }